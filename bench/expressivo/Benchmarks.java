@@ -0,0 +1,239 @@
+package expressivo;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Microbenchmarks for the hot paths of the expression system.
+ * 
+ * Each benchmark runs against generated corpora of several shapes and sizes
+ * (see Corpus), with warmup iterations before the measured ones, and reports
+ * the mean time per operation in CSV form: benchmark,shape,size,ns_per_op,stddev.
+ * A benchmark case that throws is reported on standard error and skipped, so
+ * one failure does not end the run. Benchmarks that parse with ANTLR, whose
+ * recursive descent needs Java stack for every level of parentheses, are not
+ * run on DEEP inputs nested more than MAX_ANTLR_DEPTH levels.
+ * 
+ * Usage: java -cp ... expressivo.Benchmarks [options]
+ *   --filter NAME      only run benchmarks whose name contains NAME
+ *   --sizes 10,1000    leaf counts to generate (default 10,1000,10000)
+ *   --iterations N     measured iterations per benchmark (default 5)
+ *   --baseline FILE    compare against an earlier CSV output and exit with
+ *                      status 1 if any benchmark is slower by more than --tolerance
+ *   --tolerance PCT    allowed slowdown in percent (default 20)
+ * 
+ * This is a self-contained harness so it runs with only the project classpath;
+ * like JMH, it consumes every result to keep the JIT from eliminating the work.
+ */
+public class Benchmarks {
+    
+    private static final long ITERATION_NANOS = 200_000_000L;
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final long SEED = 6005;
+    private static final int MAX_ANTLR_DEPTH = 1000;
+    
+    /** Sink for benchmark results, so the work cannot be optimized away. */
+    private static volatile int sink;
+    
+    /** One operation to time, given a generated input. */
+    private interface Benchmark {
+        Supplier<Object> prepare(String input);
+    }
+    
+    private static Map<String, Benchmark> benchmarks() {
+        final Map<String, Benchmark> all = new LinkedHashMap<>();
+        all.put("parse.antlr", input -> () -> Expression.parse(input, ParseMode.ANTLR));
+        all.put("parse.sll", input -> () -> Expression.parse(input, ParseMode.ANTLR_SLL));
+        all.put("parse.direct", input -> () -> Expression.parse(input, ParseMode.DIRECT));
+        all.put("toString", input -> {
+            final Expression expression = parse(input);
+            return () -> expression.toString();
+        });
+        all.put("equals", input -> {
+            final Expression expression = parse(input);
+            final Expression copy = Corpus.unsharedCopy(expression);
+            return () -> expression.equals(copy);
+        });
+        all.put("hashCode", input -> {
+            final Expression copy = Corpus.unsharedCopy(parse(input));
+            return () -> copy.hashCode();
+        });
+        all.put("differentiate", input -> {
+            final Expression expression = parse(input);
+            return () -> expression.differentiate("x");
+        });
+        all.put("commands.differentiate", input -> () -> Commands.differentiate(input, "x"));
+        all.put("commands.simplify.bound", input -> {
+            final Map<String, Double> environment = new HashMap<>();
+            environment.put("x", 1.5);
+            environment.put("y", 2.0);
+            environment.put("z", 0.5);
+            environment.put("w", 3.0);
+            return () -> Commands.simplify(input, environment);
+        });
+        all.put("commands.simplify.partial", input -> {
+            final Map<String, Double> environment = new HashMap<>();
+            environment.put("x", 1.5);
+            return () -> Commands.simplify(input, environment);
+        });
+        return all;
+    }
+    
+    /**
+     * @return true iff the benchmark parses its input with ANTLR
+     */
+    private static boolean usesAntlr(String benchmark) {
+        return benchmark.equals("parse.antlr") || benchmark.equals("parse.sll") || benchmark.startsWith("commands.");
+    }
+    
+    /**
+     * Parse a benchmark input outside the timed operation, without recursion,
+     * so inputs of any depth can be prepared.
+     */
+    private static Expression parse(String input) {
+        return Expression.parse(input, ParseMode.DIRECT);
+    }
+    
+    /**
+     * Run the benchmarks.
+     * @param args options, see the class documentation
+     * @throws IOException if the baseline file cannot be read
+     */
+    public static void main(String[] args) throws IOException {
+        String filter = "";
+        int[] sizes = { 10, 1000, 10000 };
+        int iterations = 5;
+        String baseline = null;
+        double tolerance = 20;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+            case "--filter": filter = args[++i]; break;
+            case "--sizes": sizes = parseSizes(args[++i]); break;
+            case "--iterations": iterations = Integer.parseInt(args[++i]); break;
+            case "--baseline": baseline = args[++i]; break;
+            case "--tolerance": tolerance = Double.parseDouble(args[++i]); break;
+            default: throw new IllegalArgumentException("unknown option " + args[i]);
+            }
+        }
+        
+        final PrintStream out = System.out;
+        final Map<String, Double> results = new LinkedHashMap<>();
+        out.println("benchmark,shape,size,ns_per_op,stddev");
+        for (Map.Entry<String, Benchmark> benchmark : benchmarks().entrySet()) {
+            if (!benchmark.getKey().contains(filter)) {
+                continue;
+            }
+            for (Corpus.Shape shape : Corpus.Shape.values()) {
+                for (int size : sizes) {
+                    if (usesAntlr(benchmark.getKey()) && shape == Corpus.Shape.DEEP && size > MAX_ANTLR_DEPTH) {
+                        continue; // ANTLR would overflow the stack on this nesting
+                    }
+                    final String input = Corpus.generate(shape, size, SEED);
+                    final String key = benchmark.getKey() + "," + shape + "," + size;
+                    final double[] stats;
+                    try {
+                        stats = measure(benchmark.getValue().prepare(input), iterations);
+                    } catch (RuntimeException | StackOverflowError failure) {
+                        System.err.println("failed " + key + ": " + failure);
+                        continue;
+                    }
+                    results.put(key, stats[0]);
+                    out.println(String.format(Locale.ROOT, "%s,%.1f,%.1f", key, stats[0], stats[1]));
+                }
+            }
+        }
+        
+        if (baseline != null && !compare(readBaseline(baseline), results, tolerance)) {
+            System.exit(1);
+        }
+    }
+    
+    /**
+     * @return mean and standard deviation of the nanoseconds per operation
+     */
+    private static double[] measure(Supplier<Object> operation, int iterations) {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            iterate(operation);
+        }
+        final double[] samples = new double[iterations];
+        double mean = 0;
+        for (int i = 0; i < iterations; i++) {
+            samples[i] = iterate(operation);
+            mean += samples[i] / iterations;
+        }
+        double variance = 0;
+        for (double sample : samples) {
+            variance += (sample - mean) * (sample - mean) / iterations;
+        }
+        return new double[] { mean, Math.sqrt(variance) };
+    }
+    
+    /**
+     * @return nanoseconds per operation over one timed iteration
+     */
+    private static double iterate(Supplier<Object> operation) {
+        int hash = 0;
+        long operations = 0;
+        final long start = System.nanoTime();
+        long elapsed;
+        do {
+            hash += System.identityHashCode(operation.get());
+            operations++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < ITERATION_NANOS);
+        sink += hash;
+        return (double) elapsed / operations;
+    }
+    
+    private static int[] parseSizes(String list) {
+        final String[] parts = list.split(",");
+        final int[] sizes = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            sizes[i] = Integer.parseInt(parts[i].trim());
+        }
+        return sizes;
+    }
+    
+    private static Map<String, Double> readBaseline(String file) throws IOException {
+        final Map<String, Double> baseline = new HashMap<>();
+        try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+            in.readLine(); // header
+            String line;
+            while ((line = in.readLine()) != null) {
+                final String[] fields = line.split(",");
+                if (fields.length == 5) {
+                    baseline.put(fields[0] + "," + fields[1] + "," + fields[2], Double.parseDouble(fields[3]));
+                }
+            }
+        }
+        return baseline;
+    }
+    
+    /**
+     * Report benchmarks that got slower than the baseline by more than tolerance percent.
+     * @return true iff there were no such regressions
+     */
+    private static boolean compare(Map<String, Double> baseline, Map<String, Double> results, double tolerance) {
+        final List<String> regressions = new ArrayList<>();
+        for (Map.Entry<String, Double> result : results.entrySet()) {
+            final Double before = baseline.get(result.getKey());
+            if (before != null && result.getValue() > before * (1 + tolerance / 100)) {
+                regressions.add(String.format(Locale.ROOT, "%s: %.1f -> %.1f ns/op",
+                    result.getKey(), before, result.getValue()));
+            }
+        }
+        for (String regression : regressions) {
+            System.err.println("regression " + regression);
+        }
+        return regressions.isEmpty();
+    }
+}
@@ -0,0 +1,113 @@
+package expressivo;
+
+import java.util.Random;
+
+/**
+ * Generated expression inputs for the benchmarks.
+ * Every generator is deterministic for a given size and seed, so runs are reproducible.
+ */
+class Corpus {
+    
+    /** Shapes of generated expressions. */
+    enum Shape {
+        /** a short polynomial of a few terms, repeated to reach the size */
+        SHORT,
+        /** a long flat sum of products, like a generated model */
+        LONG,
+        /** deeply nested parentheses alternating + and * */
+        DEEP,
+        /** random balanced tree of sums and products */
+        RANDOM
+    }
+    
+    private static final String[] VARIABLES = { "x", "y", "z", "w" };
+    
+    private Corpus() {
+    }
+    
+    /**
+     * @param shape shape of the expression
+     * @param size approximate number of leaves, at least 1
+     * @param seed random seed
+     * @return a valid expression string of the given shape and size
+     */
+    static String generate(Shape shape, int size, long seed) {
+        final Random random = new Random(seed);
+        final StringBuilder out = new StringBuilder();
+        switch (shape) {
+        case SHORT:
+            out.append("x*x + 3*x*y + 2");
+            for (int i = 4; i < size; i += 4) {
+                out.append(" + x*y*").append(i);
+            }
+            break;
+        case LONG:
+            for (int i = 0; i < size; i += 3) {
+                if (i > 0) {
+                    out.append(" + ");
+                }
+                out.append(random.nextInt(10)).append('*').append(variable(random))
+                    .append('*').append(variable(random));
+            }
+            break;
+        case DEEP:
+            for (int i = 1; i < size; i++) {
+                out.append(variable(random)).append(i % 2 == 0 ? "+(" : "*(");
+            }
+            out.append(variable(random));
+            for (int i = 1; i < size; i++) {
+                out.append(')');
+            }
+            break;
+        case RANDOM:
+            appendRandom(out, size, random);
+            break;
+        default:
+            throw new AssertionError("unknown shape " + shape);
+        }
+        return out.toString();
+    }
+    
+    private static void appendRandom(StringBuilder out, int size, Random random) {
+        if (size <= 1) {
+            if (random.nextBoolean()) {
+                out.append(variable(random));
+            } else {
+                out.append(random.nextInt(100));
+            }
+            return;
+        }
+        final int left = 1 + random.nextInt(size - 1);
+        out.append('(');
+        appendRandom(out, left, random);
+        out.append(random.nextBoolean() ? ")+(" : ")*(");
+        appendRandom(out, size - left, random);
+        out.append(')');
+    }
+    
+    private static String variable(Random random) {
+        return VARIABLES[random.nextInt(VARIABLES.length)];
+    }
+    
+    /**
+     * @param expression an expression
+     * @return a structurally equal copy of expression built with the public
+     *         constructors, so it shares no nodes with expression
+     */
+    static Expression unsharedCopy(Expression expression) {
+        return Traversal.fold(expression, new Traversal.Fold<Expression>() {
+            @Override public Expression number(Number number) {
+                return new Number(number.getValue());
+            }
+            @Override public Expression variable(Variable variable) {
+                return new Variable(variable.getName());
+            }
+            @Override public Expression addition(Addition sum, Expression left, Expression right) {
+                return new Addition(left, right);
+            }
+            @Override public Expression multiplication(Multiplication product, Expression left, Expression right) {
+                return new Multiplication(left, right);
+            }
+        });
+    }
+}
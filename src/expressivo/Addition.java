@@ -6,38 +6,78 @@ public class Addition implements Expression {
 	 * 	AF(exp1, exp2) = exp1 + exp2
 	 * Rep invariant:
 	 * 	exp1 and exp2 keep its rep invariant
+	 * 	fingerprint == Hashing.composite(Hashing.ADDITION, exp1.fingerprint(), exp2.fingerprint())
+	 * 	treeSize == Metrics.compositeSize(Metrics.size(exp1), Metrics.size(exp2))
+	 * 	depth == 1 + max(Metrics.depth(exp1), Metrics.depth(exp2))
 	 * Safety from rep exposure:
 	 * 	all fields are private and final
 	 */
 	
 	private final Expression exp1, exp2;
+	private final long fingerprint;
+	private final long treeSize;
+	private final int depth;
 	
 	public Addition(Expression exp1, Expression exp2) {
 		this.exp1 = exp1;
 		this.exp2 = exp2;
+		this.fingerprint = Hashing.composite(Hashing.ADDITION, exp1.fingerprint(), exp2.fingerprint());
+		this.treeSize = Metrics.compositeSize(Metrics.size(exp1), Metrics.size(exp2));
+		this.depth = 1 + Math.max(Metrics.depth(exp1), Metrics.depth(exp2));
 	}
 	
 	@Override public String toString() {
-		String left = exp1.isPrimitive() ? exp1.toString() :
-			"(" + exp1.toString() + ")";
-		String right = exp2.isPrimitive() ? exp2.toString() :
-			"(" + exp2.toString() + ")";
-		return left + "+" + right;
+		return Traversal.toString(this);
 	}
 	
 	@Override public boolean equals(Object thatObject) {
-		if (!(thatObject instanceof Addition)) {
+		if (this == thatObject) {
+			return true;
+		}
+		if (!(thatObject instanceof Addition || thatObject instanceof Sum)) {
 			return false;
 		}
-		Addition that = (Addition) thatObject;
-		return exp1.equals(that.exp1) && exp2.equals(that.exp2);
+		final Expression that = (Expression) thatObject;
+		return fingerprint == that.fingerprint() && Traversal.equal(this, that);
 	}
 	
 	@Override public int hashCode() {
-		return (exp1.hashCode() + exp2.hashCode()) % 1000;
+		return Hashing.toHashCode(fingerprint);
+	}
+	
+	@Override public long fingerprint() {
+		return fingerprint;
+	}
+	
+	/**
+	 * @return number of nodes in this expression as a tree, as Metrics.size()
+	 */
+	long treeSize() {
+		return treeSize;
 	}
 	
+	/**
+	 * @return number of nodes on the longest path to a leaf, as Metrics.depth()
+	 */
+	int depth() {
+		return depth;
+	}
 	
+	
+
+	/**
+	 * @return the left operand of this expression
+	 */
+	Expression left() {
+		return exp1;
+	}
+	
+	/**
+	 * @return the right operand of this expression
+	 */
+	Expression right() {
+		return exp2;
+	}
 
 	public boolean isPrimitive() {
 		return false;
@@ -45,8 +85,6 @@ public class Addition implements Expression {
 	@Override
     public Expression differentiate(String variable) {
         // Differentiation rule for addition: d(u + v)/dx = du/dx + dv/dx
-        Expression dLeft = exp1.differentiate(variable);
-        Expression dRight = exp2.differentiate(variable);
-        return new Addition(dLeft, dRight);
+        return Differentiator.differentiate(this, variable);
     }
 }
\ No newline at end of file
@@ -0,0 +1,181 @@
+package expressivo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.antlr.v4.runtime.ANTLRErrorListener;
+import org.antlr.v4.runtime.ANTLRErrorStrategy;
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.BailErrorStrategy;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.ConsoleErrorListener;
+import org.antlr.v4.runtime.DefaultErrorStrategy;
+import org.antlr.v4.runtime.RecognitionException;
+import org.antlr.v4.runtime.Recognizer;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.TokenStream;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.ParseTreeWalker;
+
+import expressivo.parser.ExpressionLexer;
+import expressivo.parser.ExpressionParser;
+
+/**
+ * A reusable ANTLR lexer and parser pair.
+ *
+ * Each thread gets its own instance through forCurrentThread(), and every parse
+ * resets the same lexer and parser onto new input, instead of building and
+ * wiring up fresh ones with their error listeners. Only the token stream is
+ * made per parse: in this ANTLR version a token stream that has reached EOF
+ * cannot be reset onto new input.
+ *
+ * Besides the default parse, which predicts with full LL and lets ANTLR's
+ * default error strategy attempt recovery before an error listener throws,
+ * parseTwoStage() first tries the cheaper SLL prediction with a strategy that
+ * bails out at the first syntax error, and reparses the buffered tokens with
+ * full LL only if SLL fails. During that parse the parser has no error
+ * listeners, so a syntax error is neither printed nor thrown from a listener,
+ * and reaches the bail strategy as a ParseCancellationException.
+ */
+final class AntlrParser {
+
+    // Abstraction function:
+    //   AF(lexer, parser) = a parser for the PS3 expression grammar, in which
+    //     lexer feeds parser through a token stream
+    // Rep invariant:
+    //   both lexer and parser report errors as IllegalArgumentException
+    //   between calls to parse, lexer and parser hold no input, and have their
+    //     error listeners lexerListeners and parserListeners
+    // Safety from rep exposure:
+    //   all fields are private and final and never returned
+    // Thread safety argument:
+    //   an instance is confined to the thread that made it by forCurrentThread()
+
+    private static final ThreadLocal<AntlrParser> PARSERS = new ThreadLocal<AntlrParser>() {
+        @Override protected AntlrParser initialValue() {
+            return new AntlrParser();
+        }
+    };
+
+    private static final ANTLRInputStream EMPTY = new ANTLRInputStream("");
+    private static final TokenStream IDLE = new CommonTokenStream(new ExpressionLexer(EMPTY));
+
+    private final ExpressionLexer lexer;
+    private final ExpressionParser parser;
+    private final ParseTreeWalker walker = new ParseTreeWalker();
+    private final ANTLRErrorStrategy recovering = new DefaultErrorStrategy();
+    private final ANTLRErrorStrategy bailing = new BailErrorStrategy();
+    private final List<ANTLRErrorListener> lexerListeners;
+    private final List<ANTLRErrorListener> parserListeners;
+    private boolean quiet = false;
+
+    private AntlrParser() {
+        lexer = new ExpressionLexer(EMPTY);
+        lexer.reportErrorsAsExceptions();
+        parser = new ExpressionParser(new CommonTokenStream(lexer));
+        parser.reportErrorsAsExceptions();
+        lexerListeners = new ArrayList<>(lexer.getErrorListeners());
+        parserListeners = new ArrayList<>(parser.getErrorListeners());
+    }
+
+    /**
+     * @return the parser owned by the calling thread
+     */
+    static AntlrParser forCurrentThread() {
+        return PARSERS.get();
+    }
+
+    /**
+     * Parse an expression.
+     * @param input expression to parse, as defined in the PS3 handout.
+     * @return expression AST for the input
+     * @throws IllegalArgumentException if the expression is invalid
+     */
+    Expression parse(String input) {
+        try {
+            lexer.setInputStream(new ANTLRInputStream(input));
+            parser.setTokenStream(new CommonTokenStream(lexer));
+            parser.setErrorHandler(recovering);
+            parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+            return build(parser.root());
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Parse an expression, predicting with SLL and falling back to full LL only
+     * if SLL fails, and stopping at the first syntax error without recovery.
+     * @param input expression to parse, as defined in the PS3 handout.
+     * @return expression AST for the input, equal to parse(input)
+     * @throws IllegalArgumentException if the expression is invalid
+     */
+    Expression parseTwoStage(String input) {
+        try {
+            lexer.setInputStream(new ANTLRInputStream(input));
+            final CommonTokenStream tokens = new CommonTokenStream(lexer);
+            parser.setTokenStream(tokens);
+            parser.setErrorHandler(bailing);
+            parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+            // the generated rules report an error to the listeners before the
+            // strategy bails, so a listener would print it, or throw before
+            // the LL stage gets a chance; the lexer still throws, but silently
+            quiet = true;
+            parser.removeErrorListeners();
+            lexer.removeErrorListener(ConsoleErrorListener.INSTANCE);
+            try {
+                return build(parser.root());
+            } catch (ParseCancellationException sllFailed) {
+                // SLL is weaker than LL, so only a full LL parse can tell
+                // whether the input is really invalid
+            }
+            tokens.seek(0);
+            parser.setTokenStream(tokens);
+            parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+            try {
+                return build(parser.root());
+            } catch (ParseCancellationException llFailed) {
+                throw syntaxError(llFailed);
+            }
+        } finally {
+            release();
+        }
+    }
+
+    private Expression build(ParseTree tree) {
+        final ExpressionMaker maker = new ExpressionMaker();
+        walker.walk(maker, tree);
+        return maker.getExpression();
+    }
+
+    private static IllegalArgumentException syntaxError(ParseCancellationException bail) {
+        final Throwable cause = bail.getCause();
+        if (cause instanceof RecognitionException
+                && ((RecognitionException) cause).getOffendingToken() != null) {
+            final Token token = ((RecognitionException) cause).getOffendingToken();
+            return new IllegalArgumentException("syntax error at " + token.getLine() + ":"
+                + token.getCharPositionInLine() + " near " + token.getText(), cause);
+        }
+        return new IllegalArgumentException("syntax error", cause);
+    }
+
+    private void release() {
+        // drop the input and its tokens, so an idle thread holds no large text
+        lexer.setInputStream(EMPTY);
+        parser.setTokenStream(IDLE);
+        if (quiet) {
+            restore(lexer, lexerListeners);
+            restore(parser, parserListeners);
+            quiet = false;
+        }
+    }
+    
+    private static void restore(Recognizer<?, ?> recognizer, List<ANTLRErrorListener> listeners) {
+        recognizer.removeErrorListeners();
+        for (ANTLRErrorListener listener : listeners) {
+            recognizer.addErrorListener(listener);
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package expressivo;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Compact binary format for sequences of expressions.
+ * 
+ * <p>A stream starts with the 4-byte magic "EXPB" and a version byte, followed by
+ * one record per expression. A record is the expression in postfix order, one
+ * opcode byte per node, terminated by END:
+ * <pre>
+ *   NUMBER    value: 8-byte big-endian IEEE double, nonnegative
+ *   VARIABLE  id: varint, a name defined earlier in the stream
+ *   DEFINE    length: varint, name: UTF-8 bytes; defines the next variable id
+ *   ADD, MULTIPLY
+ *   REFERENCE index: varint, a node decoded earlier in the same record
+ *   END
+ * </pre>
+ * Varints are unsigned LEB128. Variable names form a string table shared by the
+ * whole stream, so each name is stored once. Every NUMBER, VARIABLE, DEFINE, ADD
+ * and MULTIPLY decodes to a node numbered from 0 within its record, and a subtree
+ * that the writer sees again (by identity) is written as a REFERENCE to it, so
+ * shared DAGs such as derivatives keep their size.
+ */
+public final class BinaryFormat {
+    
+    static final byte NUMBER = 0, VARIABLE = 1, DEFINE = 2, ADD = 3, MULTIPLY = 4, REFERENCE = 5, END = 6;
+    private static final byte[] MAGIC = { 'E', 'X', 'P', 'B' };
+    private static final byte VERSION = 1;
+    
+    private BinaryFormat() {
+    }
+    
+    /**
+     * Writes expressions to a byte stream in the binary format.
+     * Not safe for concurrent use.
+     */
+    public static final class Writer implements Closeable {
+        private final DataOutputStream out;
+        private final Map<String, Integer> ids = new HashMap<>();
+        
+        /**
+         * Start a stream, writing its header.
+         * @param out destination of the stream
+         * @throws IOException if out throws IOException
+         */
+        public Writer(OutputStream out) throws IOException {
+            this.out = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+            this.out.write(MAGIC);
+            this.out.writeByte(VERSION);
+        }
+        
+        /**
+         * Append one expression to the stream.
+         * @param expression expression to write
+         * @throws IOException if the destination throws IOException
+         */
+        public void write(Expression expression) throws IOException {
+            final Map<Expression, Integer> written = new IdentityHashMap<>();
+            // nodes[0..top) is the work stack; expanded[i] is true once the
+            // operands of nodes[i] have been written
+            Expression[] nodes = new Expression[16];
+            boolean[] expanded = new boolean[16];
+            int top = 0;
+            nodes[top++] = expression;
+            while (top > 0) {
+                top--;
+                final Expression node = nodes[top];
+                final boolean ready = expanded[top];
+                nodes[top] = null;
+                expanded[top] = false;
+                
+                final Integer index = written.get(node);
+                if (index != null) {
+                    out.writeByte(REFERENCE);
+                    writeVarint(index);
+                    continue;
+                }
+                if (!ready && (Traversal.isSum(node) || Traversal.isProduct(node))) {
+                    // a Sum or Product is written as its chain of binary nodes
+                    if (top + 3 > nodes.length) {
+                        nodes = Arrays.copyOf(nodes, nodes.length * 2);
+                        expanded = Arrays.copyOf(expanded, expanded.length * 2);
+                    }
+                    nodes[top] = node;
+                    expanded[top++] = true;
+                    nodes[top++] = Traversal.right(node);
+                    nodes[top++] = Traversal.left(node);
+                    continue;
+                }
+                if (Traversal.isSum(node)) {
+                    out.writeByte(ADD);
+                } else if (Traversal.isProduct(node)) {
+                    out.writeByte(MULTIPLY);
+                } else if (node instanceof Number) {
+                    out.writeByte(NUMBER);
+                    out.writeDouble(((Number) node).getValue());
+                } else if (node instanceof Variable) {
+                    final String name = ((Variable) node).getName();
+                    final Integer id = ids.get(name);
+                    if (id == null) {
+                        final byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                        out.writeByte(DEFINE);
+                        writeVarint(bytes.length);
+                        out.write(bytes);
+                        ids.put(name, ids.size());
+                    } else {
+                        out.writeByte(VARIABLE);
+                        writeVarint(id);
+                    }
+                } else {
+                    throw new IllegalArgumentException("cannot write " + node.getClass());
+                }
+                written.put(node, written.size());
+            }
+            out.writeByte(END);
+        }
+        
+        private void writeVarint(int value) throws IOException {
+            while ((value & ~0x7F) != 0) {
+                out.writeByte((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.writeByte(value);
+        }
+        
+        /**
+         * Flush the stream to its destination without closing it.
+         * @throws IOException if the destination throws IOException
+         */
+        public void flush() throws IOException {
+            out.flush();
+        }
+        
+        @Override public void close() throws IOException {
+            out.close();
+        }
+    }
+    
+    /**
+     * Reads expressions in the binary format directly from a byte buffer,
+     * for example a memory-mapped file, without copying the input.
+     * Expressions are built through the interning Expression factories, with each
+     * chain of sums or products made into one node as Expression.parse makes it.
+     * Not safe for concurrent use.
+     */
+    public static final class Reader implements Iterator<Expression> {
+        private final ByteBuffer buffer;
+        private final List<Expression> variables = new ArrayList<>();
+        
+        /**
+         * Start reading a stream.
+         * @param buffer the stream, from its position to its limit; the reader takes
+         *        over the buffer and advances its position
+         * @throws IllegalArgumentException if the buffer does not start with a valid header
+         */
+        public Reader(ByteBuffer buffer) {
+            this.buffer = buffer.order(ByteOrder.BIG_ENDIAN);
+            for (byte expected : MAGIC) {
+                if (!buffer.hasRemaining() || buffer.get() != expected) {
+                    throw new IllegalArgumentException("not an expression stream");
+                }
+            }
+            if (!buffer.hasRemaining() || buffer.get() != VERSION) {
+                throw new IllegalArgumentException("unsupported expression stream version");
+            }
+        }
+        
+        /**
+         * Memory-map a file and start reading the stream in it.
+         * @param path file containing a stream written by Writer
+         * @return a reader over the mapped file
+         * @throws IOException if the file cannot be mapped
+         * @throws IllegalArgumentException if the file does not start with a valid header
+         */
+        public static Reader open(Path path) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                return new Reader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            }
+        }
+        
+        @Override public boolean hasNext() {
+            return buffer.hasRemaining();
+        }
+        
+        /**
+         * @return the next expression of the stream
+         * @throws NoSuchElementException if the stream has no more expressions
+         * @throws IllegalArgumentException if the stream is malformed, including
+         *         a NUMBER that is negative or NaN
+         */
+        @Override public Expression next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            // each decoded node is an Expression or a Chain, so chains of sums and
+            // products become flat nodes as the parsers make them
+            final Chain.Nodes nodes = new Chain.Nodes();
+            Object[] decoded = new Object[16];
+            int count = 0;
+            Object[] stack = new Object[16];
+            int top = 0;
+            try {
+                while (true) {
+                    final byte opcode = buffer.get();
+                    final Object node;
+                    switch (opcode) {
+                    case END:
+                        if (top != 1) {
+                            throw new IllegalArgumentException("malformed expression record");
+                        }
+                        return nodes.node(stack[0]);
+                    case REFERENCE:
+                        node = decoded[readIndex(count)];
+                        break;
+                    case NUMBER: {
+                        final double value = buffer.getDouble();
+                        if (!(value >= 0)) {
+                            throw new IllegalArgumentException("invalid number " + value);
+                        }
+                        node = Expression.number(value);
+                        break;
+                    }
+                    case VARIABLE:
+                        node = variables.get(readIndex(variables.size()));
+                        break;
+                    case DEFINE: {
+                        final int length = readVarint();
+                        final ByteBuffer bytes = buffer.slice();
+                        bytes.limit(length);
+                        buffer.position(buffer.position() + length);
+                        final Expression variable = Expression.variable(StandardCharsets.UTF_8.decode(bytes).toString());
+                        variables.add(variable);
+                        node = variable;
+                        break;
+                    }
+                    case ADD:
+                    case MULTIPLY: {
+                        if (top < 2) {
+                            throw new IllegalArgumentException("malformed expression record");
+                        }
+                        final Object right = stack[--top];
+                        final Object left = stack[--top];
+                        node = nodes.link(opcode == ADD, left, right);
+                        break;
+                    }
+                    default:
+                        throw new IllegalArgumentException("unknown opcode " + opcode);
+                    }
+                    if (opcode != REFERENCE) {
+                        if (count == decoded.length) {
+                            decoded = Arrays.copyOf(decoded, count * 2);
+                        }
+                        decoded[count++] = node;
+                    }
+                    if (top == stack.length) {
+                        stack = Arrays.copyOf(stack, top * 2);
+                    }
+                    stack[top++] = node;
+                }
+            } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+                throw new IllegalArgumentException("truncated expression stream", e);
+            }
+        }
+        
+        private int readIndex(int bound) {
+            final int index = readVarint();
+            if (index >= bound) {
+                throw new IllegalArgumentException("reference to undefined index " + index);
+            }
+            return index;
+        }
+        
+        private int readVarint() {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                final byte b = buffer.get();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    if (value < 0) {
+                        break;
+                    }
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("malformed varint");
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package expressivo;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A right-nested chain of operands of one operator, e0 + (e1 + (... + en)) or
+ * e0 * (e1 * (... * en)), that is still being built and is not yet a node.
+ *
+ * Builders of flat expressions, the parsers and Flattener, keep a chain as a
+ * linked list while more operands are put in front of it, and make it into one
+ * flat node with node() only when it is complete: when it becomes an operand
+ * of something else, or the root. Each operand is added in O(1), and each
+ * chain is made into a node once, so building a flat expression takes time
+ * linear in its size however deeply its chains are nested in parentheses.
+ *
+ * Builders pass around results that are either an Expression or a Chain.
+ * Builders that may use one result as an operand more than once, because they
+ * build a DAG, make their nodes through a Nodes, which makes each chain once.
+ */
+final class Chain {
+
+    // Abstraction function:
+    //   AF(isSum, head, tail) = head + AF(tail) if isSum, head * AF(tail) otherwise,
+    //     where AF(tail) is tail itself if tail is an Expression
+    // Rep invariant:
+    //   tail is an Expression, or a Chain with the same isSum
+    //   head is a finished Expression
+    // Safety from rep exposure:
+    //   all fields are private and final, and all are immutable
+
+    private final boolean isSum;
+    private final Expression head;
+    private final Object tail;
+
+    private Chain(boolean isSum, Expression head, Object tail) {
+        this.isSum = isSum;
+        this.head = head;
+        this.tail = tail;
+        checkRep();
+    }
+
+    private void checkRep() {
+        assert tail instanceof Expression || continues(tail, isSum);
+    }
+
+    /**
+     * @param result an Expression or a Chain
+     * @param isSum true for a chain of sums, false for a chain of products
+     * @return true iff result is a Chain of that operator, so that an operand
+     *         put in front of it continues it
+     */
+    static boolean continues(Object result, boolean isSum) {
+        return result instanceof Chain && ((Chain) result).isSum == isSum;
+    }
+
+    /**
+     * @param isSum true for a chain of sums, false for a chain of products
+     * @param head a finished expression
+     * @param tail an Expression, or a Chain for which continues(tail, isSum)
+     * @return the chain head + tail if isSum, head * tail otherwise
+     */
+    static Chain link(boolean isSum, Expression head, Object tail) {
+        return new Chain(isSum, head, tail);
+    }
+
+    /**
+     * @param result an Expression or a Chain
+     * @return result if it is an Expression; otherwise the flat node made by
+     *         Expression.sum() or product() from the operands of the chain
+     */
+    static Expression node(Object result) {
+        if (!(result instanceof Chain)) {
+            return (Expression) result;
+        }
+        final Chain chain = (Chain) result;
+        final List<Expression> operands = new ArrayList<>();
+        Object rest = chain;
+        while (rest instanceof Chain) {
+            operands.add(((Chain) rest).head);
+            rest = ((Chain) rest).tail;
+        }
+        operands.add((Expression) rest);
+        return chain.isSum ? Expression.sum(operands) : Expression.product(operands);
+    }
+    
+    /**
+     * Makes the links and nodes of one build, making each chain into a node
+     * only once however many times it is used as an operand.
+     * Not safe for concurrent use.
+     */
+    static final class Nodes {
+        
+        // Abstraction function:
+        //   AF(made) = a build in progress, in which made maps each chain
+        //              already made into a node to that node
+        // Rep invariant:
+        //   every value of made is Chain.node() of its key
+        // Safety from rep exposure:
+        //   made is private and never returned
+        
+        private final Map<Chain, Expression> made = new IdentityHashMap<>();
+        
+        /**
+         * @param isSum true for a sum, false for a product
+         * @param left an Expression or a Chain
+         * @param right an Expression or a Chain
+         * @return the result for left + right if isSum, left * right otherwise,
+         *         continuing right if it is a chain of the same operator
+         */
+        Chain link(boolean isSum, Object left, Object right) {
+            return Chain.link(isSum, node(left), continues(right, isSum) ? right : node(right));
+        }
+        
+        /**
+         * @param result an Expression or a Chain
+         * @return Chain.node(result), made once per chain
+         */
+        Expression node(Object result) {
+            if (!(result instanceof Chain)) {
+                return (Expression) result;
+            }
+            Expression node = made.get(result);
+            if (node == null) {
+                node = Chain.node(result);
+                made.put((Chain) result, node);
+            }
+            return node;
+        }
+    }
+}
@@ -3,7 +3,10 @@
  */
 package expressivo;
 
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.function.Function;
 
 /**
  * String-based commands provided by the expression system.
@@ -21,6 +24,11 @@ public class Commands {
      * @param variable the variable to differentiate by, a case-sensitive nonempty string of letters.
      * @return expression's derivative with respect to variable.  Must be a valid expression equal
      *         to the derivative, but doesn't need to be in simplest or canonical form.
+     *         This implementation returns the derivative as an expanded polynomial with like
+     *         terms collected, as produced by Polynomial.toExpression(), if expanding the
+     *         expression takes at most a fixed number of terms; otherwise, as for products
+     *         of many sums, whose expansion grows exponentially, it returns the derivative
+     *         made by Expression.differentiate(), which is linear in the size of the expression.
      * @throws IllegalArgumentException if the expression or variable is invalid
      */
 	 public static String differentiate(String expression, String variable) {
@@ -28,9 +36,38 @@ public class Commands {
 	            throw new IllegalArgumentException();
 	        }
 	        
-	        return Expression.parse(expression).differentiate(variable).toString();
+	        final long start = Metrics.start();
+	        final Expression parsed = Expression.parse(expression);
+	        final Expression derivative = differentiate(parsed, variable);
+	        final String text = derivative.toString();
+	        final long nanos = Metrics.elapsed(start);
+	        if (nanos >= 0) {
+	            Metrics.record(Metrics.Operation.COMMANDS_DIFFERENTIATE, nanos,
+	                Metrics.size(parsed), Metrics.size(derivative), Metrics.depth(parsed));
+	        }
+	        return text;
 	 }
     
+    /**
+     * Differentiate an expression with respect to a variable.
+     * @param expression the expression to differentiate
+     * @param variable the variable to differentiate by, a case-sensitive nonempty string of letters.
+     * @return expression's derivative with respect to variable, as an expanded polynomial with like
+     *         terms collected or, if that expansion is too large, as made by Expression.differentiate(),
+     *         as in differentiate(String, String); differentiate(e, v).toString() equals
+     *         differentiate(e.toString(), v)
+     * @throws IllegalArgumentException if the variable is invalid
+     */
+    public static Expression differentiate(Expression expression, String variable) {
+        if (!variable.matches("[A-Za-z]+")) {
+            throw new IllegalArgumentException();
+        }
+        final Optional<Polynomial> expanded = Polynomial.of(expression, Polynomial.EXPANSION_LIMIT);
+        return expanded.isPresent()
+            ? expanded.get().differentiate(variable).toExpression()
+            : expression.differentiate(variable);
+    }
+    
     /**
      * Simplify an expression.
      * @param expression the expression to simplify
@@ -41,10 +78,140 @@ public class Commands {
      *         the expression and the environment with its value, environment.get(v).  If there are no
      *         variables left in this expression after substitution, it must be evaluated to a single number.
      *         Additional simplifications to the expression may be done at the implementor's discretion.
+     *         If variables remain, this implementation returns the result as an expanded
+     *         polynomial with like terms collected, as produced by Polynomial.toExpression(),
+     *         if that expansion takes at most a fixed number of terms, and otherwise the
+     *         expression after substitution, with operations on numbers folded.
      * @throws IllegalArgumentException if the expression is invalid
      */
     public static String simplify(String expression, Map<String,Double> environment) {
-        throw new RuntimeException("unimplemented");
+        final long start = Metrics.start();
+        // the parsed input and its compiled form are both cached, so a repeated
+        // input is neither parsed nor compiled again, whether or not it is closed
+        final Expression input = CompiledExpression.parse(expression);
+        final Expression simplified = simplify(input, environment);
+        final String text = simplified.toString();
+        final long nanos = Metrics.elapsed(start);
+        if (nanos >= 0) {
+            Metrics.record(Metrics.Operation.COMMANDS_SIMPLIFY, nanos,
+                Metrics.size(input), Metrics.size(simplified), Metrics.depth(input));
+        }
+        return text;
+    }
+    
+    /**
+     * Simplify an expression.
+     * @param expression the expression to simplify
+     * @param environment maps variables to values, as in simplify(String, Map)
+     * @return an expression equal to expression after substituting the values of environment, as in
+     *         simplify(String, Map); simplify(e, env).toString() equals simplify(e.toString(), env)
+     */
+    public static Expression simplify(Expression expression, Map<String,Double> environment) {
+        final CompiledExpression compiled = CompiledExpression.compile(expression);
+        if (compiled.isClosedUnder(environment)) {
+            return Expression.number(compiled.evaluate(environment));
+        }
+        return simplifyPartially(expression, environment);
+    }
+    
+    /**
+     * Simplify an expression, with an environment indexed by variable id.
+     * @param expression the expression to simplify
+     * @param environment environment indexed by variable id, as made by Symbols.environment();
+     *         entries for unbound variables are Symbols.UNBOUND, and entries past its end are unbound
+     * @return an expression equal to expression after substituting the values of environment,
+     *         as in simplify(Expression, Map); looking up each variable is an array access
+     */
+    public static Expression simplify(Expression expression, double[] environment) {
+        final CompiledExpression compiled = CompiledExpression.compile(expression);
+        if (compiled.isClosedUnder(environment)) {
+            return Expression.number(compiled.evaluateById(environment));
+        }
+        final Expression substituted = substitute(expression, variable ->
+            Symbols.isBound(environment, variable.getId()) ? environment[variable.getId()] : null);
+        return expand(substituted);
+    }
+    
+    /**
+     * Evaluate an expression and its gradient in one pass.
+     * @param expression the expression to evaluate
+     * @param environment maps variables to values; must bind every variable of the expression
+     * @return the value of expression under environment, with the partial derivative
+     *         with respect to each of its variables, computed by reverse-mode automatic
+     *         differentiation at a small constant multiple of the cost of one evaluation
+     * @throws IllegalArgumentException if the expression is invalid or a variable is unbound
+     */
+    public static Gradient gradient(String expression, Map<String,Double> environment) {
+        return Gradient.of(CompiledExpression.compile(expression), environment);
+    }
+    
+    /**
+     * Evaluate an expression and its gradient in one pass.
+     * @param expression the expression to evaluate
+     * @param environment maps variables to values, as in gradient(String, Map)
+     * @return the value and gradient of expression under environment, as in gradient(String, Map)
+     * @throws IllegalArgumentException if a variable is unbound
+     */
+    public static Gradient gradient(Expression expression, Map<String,Double> environment) {
+        return Gradient.of(CompiledExpression.compile(expression), environment);
+    }
+    
+    /**
+     * @param expression expression to simplify
+     * @param environment maps variables to values; leaves some variable of expression unbound
+     * @return expression after substituting environment, expanded as by expand()
+     */
+    private static Expression simplifyPartially(Expression expression, Map<String,Double> environment) {
+        return expand(substitute(expression, variable -> environment.get(variable.getName())));
+    }
+    
+    /**
+     * @param expression an expression
+     * @return the expanded polynomial of expression, or expression itself if that
+     *         expansion takes more than Polynomial.EXPANSION_LIMIT terms
+     */
+    private static Expression expand(Expression expression) {
+        return Polynomial.of(expression, Polynomial.EXPANSION_LIMIT)
+            .map(Polynomial::toExpression)
+            .orElse(expression);
+    }
+    
+    /**
+     * @param expression expression to substitute into
+     * @param environment gives the value of a variable, or null if it is unbound
+     * @return expression with every variable bound in environment replaced by its value,
+     *         and folded as it is rebuilt by simplifiedAdd and simplifiedMultiplication
+     */
+    private static Expression substitute(Expression expression, final Function<Variable, Double> environment) {
+        return Traversal.foldShared(expression, new Traversal.Fold<Expression>() {
+            @Override public Expression number(Number number) {
+                return number;
+            }
+            @Override public Expression variable(Variable variable) {
+                final Double value = environment.apply(variable);
+                return value == null ? variable : Expression.number(value);
+            }
+            @Override public Expression addition(Addition sum, Expression left, Expression right) {
+                return Expression.simplifiedAdd(left, right);
+            }
+            @Override public Expression multiplication(Multiplication product, Expression left, Expression right) {
+                return Expression.simplifiedMultiplication(left, right);
+            }
+            @Override public Expression sum(Sum sum, List<Expression> operands) {
+                Expression result = operands.get(operands.size() - 1);
+                for (int i = operands.size() - 2; i >= 0; i--) {
+                    result = Expression.simplifiedAdd(operands.get(i), result);
+                }
+                return result;
+            }
+            @Override public Expression product(Product product, List<Expression> operands) {
+                Expression result = operands.get(operands.size() - 1);
+                for (int i = operands.size() - 2; i >= 0; i--) {
+                    result = Expression.simplifiedMultiplication(operands.get(i), result);
+                }
+                return result;
+            }
+        });
     }
     
 }
@@ -0,0 +1,782 @@
+package expressivo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * An Expression compiled into a reusable evaluator.
+ * 
+ * Compiling walks the expression once and emits a straight-line program in
+ * which every variable has been resolved to a slot index. Common
+ * subexpressions are eliminated while compiling: every distinct subexpression,
+ * whether it is repeated by identity or only structurally, becomes a single
+ * instruction whose result is kept in a register for all its uses. Registers
+ * are reused once their value is dead. Evaluating the program is then a single
+ * loop over primitive arrays, with no tree walk, no lookup of variable names,
+ * and each distinct subexpression computed once.
+ * 
+ * The program also supports reverse-mode automatic differentiation: one
+ * forward sweep computes every instruction's value, and one backward sweep
+ * accumulates the derivative of the result with respect to each instruction,
+ * which yields the whole gradient for a small constant multiple of the cost
+ * of one evaluation, however many variables there are.
+ * 
+ * Finally, a program can be partially evaluated: binding some of its variables
+ * yields a residual program over the remaining free variables, in which every
+ * value that depends only on bound variables and constants has been computed
+ * once and turned into a constant. The shape of the residual depends only on
+ * which variables are bound, so it is kept as a template, cached per set of
+ * bound variables, and each new binding just computes the template's constants.
+ */
+public final class CompiledExpression {
+    
+    // Abstraction function:
+    //   AF(opcodes, first, second, targets, constants, variables, registers) =
+    //     the function from slot values v[0..variables.length) to the value of
+    //     the source expression with variables[i] bound to v[i], computed by
+    //     running instructions 0..n-1 in order, where instruction i stores in
+    //     register targets[i]:
+    //       constants[first[i]]                   if opcodes[i] == CONSTANT
+    //       v[first[i]]                           if opcodes[i] == LOAD
+    //       register first[i] + register second[i] if opcodes[i] == ADD
+    //       register first[i] * register second[i] if opcodes[i] == MULTIPLY
+    //     and the result is the final value of register targets[n-1];
+    //     firstInstruction[i] and secondInstruction[i] are the instructions
+    //     whose values registers first[i] and second[i] hold at instruction i
+    // Rep invariant:
+    //   n = opcodes.length = first.length = second.length = targets.length
+    //     = firstInstruction.length = secondInstruction.length >= 1
+    //   for every CONSTANT i, 0 <= first[i] < constants.length
+    //   for every LOAD i, 0 <= first[i] < variables.length
+    //   for every ADD or MULTIPLY i, first[i] and second[i] are registers written
+    //     by earlier instructions and not overwritten since
+    //   0 <= targets[i] < registers
+    //   for every ADD or MULTIPLY i, firstInstruction[i] < i, secondInstruction[i] < i,
+    //     targets[firstInstruction[i]] == first[i], targets[secondInstruction[i]] == second[i]
+    //   every variable slot is loaded by exactly one instruction
+    //   variables contains distinct nonempty strings of letters
+    //   symbols.length == variables.length, symbols[i] == Symbols.id(variables[i])
+    //   residuals maps sets of bound slots to residual templates for them
+    // Safety from rep exposure:
+    //   all fields are private, and final except residuals; arrays are never
+    //   returned, and variables() returns an unmodifiable copy; programs made by
+    //   partial evaluation share arrays with their template, which no one mutates
+    // Thread safety argument:
+    //   all fields but residuals are immutable; residuals is created and
+    //   accessed only while holding this object's lock
+    
+    static final byte CONSTANT = 0, LOAD = 1, ADD = 2, MULTIPLY = 3;
+    
+    private static final int CACHE_CAPACITY = 1024;
+    private static final int BLOCK_SIZE = 1024;
+    private static final int RESIDUAL_CAPACITY = 64;
+    // parsed keeps the expressions of recently compiled inputs, and so keeps
+    // their entries of expressionCache reachable
+    private static final Map<String, Expression> parsed =
+        new LinkedHashMap<String, Expression>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1;
+            @Override protected boolean removeEldestEntry(Map.Entry<String, Expression> eldest) {
+                return size() > CACHE_CAPACITY;
+            }
+        };
+    
+    private static final Map<Expression, CompiledExpression> expressionCache = new WeakHashMap<>();
+    
+    private final byte[] opcodes;
+    private final int[] first, second, targets;
+    private final int[] firstInstruction, secondInstruction;
+    private final double[] constants;
+    private final String[] variables;
+    private final int[] symbols;
+    private final int registers;
+    private Map<BitSet, Residual> residuals;
+    
+    private CompiledExpression(byte[] opcodes, int[] first, int[] second, int[] targets,
+            int[] firstInstruction, int[] secondInstruction,
+            double[] constants, String[] variables, int[] symbols, int registers) {
+        this.opcodes = opcodes;
+        this.first = first;
+        this.second = second;
+        this.targets = targets;
+        this.firstInstruction = firstInstruction;
+        this.secondInstruction = secondInstruction;
+        this.constants = constants;
+        this.variables = variables;
+        this.symbols = symbols;
+        this.registers = registers;
+    }
+    
+    /**
+     * Compile an expression, reusing an earlier result for an equal expression
+     * that is still reachable.
+     * @param expression expression to compile
+     * @return an evaluator for expression
+     */
+    public static CompiledExpression compile(Expression expression) {
+        synchronized (expressionCache) {
+            final CompiledExpression cached = expressionCache.get(expression);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        final CompiledExpression compiled = new Compiler().compile(expression);
+        synchronized (expressionCache) {
+            expressionCache.put(expression, compiled);
+        }
+        return compiled;
+    }
+    
+    /**
+     * Parse and compile an expression, reusing an earlier result for the same input.
+     * @param input expression to parse, as defined in the PS3 handout.
+     * @return an evaluator for Expression.parse(input), the same as compile(parse(input))
+     * @throws IllegalArgumentException if the expression is invalid
+     */
+    public static CompiledExpression compile(String input) {
+        return compile(parse(input));
+    }
+    
+    /**
+     * Parse an expression, reusing the expression parsed earlier for the same
+     * input while it is among the most recently used inputs, as compile(String) does.
+     * @param input expression to parse, as defined in the PS3 handout.
+     * @return Expression.parse(input)
+     * @throws IllegalArgumentException if the expression is invalid
+     */
+    static Expression parse(String input) {
+        synchronized (parsed) {
+            final Expression cached = parsed.get(input);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        final Expression expression = Expression.parse(input);
+        synchronized (parsed) {
+            parsed.put(input, expression);
+        }
+        return expression;
+    }
+    
+    /**
+     * @return the distinct variables of the expression, in slot order
+     */
+    public List<String> variables() {
+        return Collections.unmodifiableList(Arrays.asList(variables.clone()));
+    }
+    
+    /**
+     * @param variable a variable name
+     * @return the slot of variable, or -1 if it does not occur in the expression
+     */
+    public int slotOf(String variable) {
+        for (int i = 0; i < variables.length; i++) {
+            if (variables[i].equals(variable)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Evaluate the expression.
+     * @param values values[i] is the value of the variable in slot i;
+     *        requires values.length >= variables().size()
+     * @return the value of the expression under those bindings
+     */
+    public double evaluate(double[] values) {
+        final double[] registers = new double[this.registers];
+        for (int pc = 0; pc < opcodes.length; pc++) {
+            switch (opcodes[pc]) {
+            case CONSTANT:
+                registers[targets[pc]] = constants[first[pc]];
+                break;
+            case LOAD:
+                registers[targets[pc]] = values[first[pc]];
+                break;
+            case ADD:
+                registers[targets[pc]] = registers[first[pc]] + registers[second[pc]];
+                break;
+            case MULTIPLY:
+                registers[targets[pc]] = registers[first[pc]] * registers[second[pc]];
+                break;
+            default:
+                throw new AssertionError("bad opcode " + opcodes[pc]);
+            }
+        }
+        return registers[targets[opcodes.length - 1]];
+    }
+    
+    /**
+     * @return number of instructions of the program, one per distinct subexpression
+     */
+    public int instructions() {
+        return opcodes.length;
+    }
+    
+    /**
+     * Evaluate the expression.
+     * @param environment maps variables to values; must bind every variable of the expression
+     * @return the value of the expression under environment
+     * @throws IllegalArgumentException if a variable of the expression is unbound
+     */
+    public double evaluate(Map<String, Double> environment) {
+        return evaluate(bind(environment));
+    }
+    
+    /**
+     * Evaluate the expression.
+     * @param environment environment indexed by variable id, as made by Symbols.environment();
+     *        must bind every variable of the expression
+     * @return the value of the expression under environment
+     * @throws IllegalArgumentException if a variable of the expression is unbound
+     */
+    public double evaluateById(double[] environment) {
+        return evaluate(bind(environment));
+    }
+    
+    /**
+     * Evaluate the expression and its gradient, by reverse-mode automatic
+     * differentiation: one forward and one backward sweep over the program.
+     * @param values values[i] is the value of the variable in slot i;
+     *        requires values.length >= variables().size()
+     * @param gradient receives, in each entry i < variables().size(), the partial
+     *        derivative of the expression with respect to the variable in slot i;
+     *        requires gradient.length >= variables().size()
+     * @return the value of the expression under those bindings
+     */
+    public double gradient(double[] values, double[] gradient) {
+        final int n = opcodes.length;
+        final double[] value = new double[n];
+        for (int pc = 0; pc < n; pc++) {
+            switch (opcodes[pc]) {
+            case CONSTANT:
+                value[pc] = constants[first[pc]];
+                break;
+            case LOAD:
+                value[pc] = values[first[pc]];
+                break;
+            case ADD:
+                value[pc] = value[firstInstruction[pc]] + value[secondInstruction[pc]];
+                break;
+            case MULTIPLY:
+                value[pc] = value[firstInstruction[pc]] * value[secondInstruction[pc]];
+                break;
+            default:
+                throw new AssertionError("bad opcode " + opcodes[pc]);
+            }
+        }
+        
+        // adjoint[i] = d(result)/d(value of instruction i), complete once every
+        // user of instruction i, all of which come later, has been swept
+        final double[] adjoint = new double[n];
+        adjoint[n - 1] = 1;
+        for (int pc = n - 1; pc >= 0; pc--) {
+            final double a = adjoint[pc];
+            switch (opcodes[pc]) {
+            case CONSTANT:
+                break;
+            case LOAD:
+                gradient[first[pc]] = a;
+                break;
+            case ADD:
+                // d(u + v) = du + dv
+                adjoint[firstInstruction[pc]] += a;
+                adjoint[secondInstruction[pc]] += a;
+                break;
+            case MULTIPLY:
+                // d(u * v) = v du + u dv
+                adjoint[firstInstruction[pc]] += a * value[secondInstruction[pc]];
+                adjoint[secondInstruction[pc]] += a * value[firstInstruction[pc]];
+                break;
+            default:
+                throw new AssertionError("bad opcode " + opcodes[pc]);
+            }
+        }
+        return value[n - 1];
+    }
+    
+    /**
+     * Partially evaluate an expression.
+     * @param expression expression to partially evaluate
+     * @param binding maps some variables to values
+     * @return compile(expression).residual(binding)
+     */
+    public static CompiledExpression residual(Expression expression, Map<String, Double> binding) {
+        return compile(expression).residual(binding);
+    }
+    
+    /**
+     * Partially evaluate the expression. Every subexpression whose variables are
+     * all bound is computed once here, so evaluating the result costs only the
+     * work that depends on the free variables.
+     * 
+     * The residual template for the set of variables that binding binds is cached
+     * by this evaluator, evicting the least recently used template when
+     * RESIDUAL_CAPACITY sets are cached, so a sweep that binds the same variables
+     * to many values only computes constants for each binding.
+     * 
+     * @param binding maps some variables to values; variables of binding that do
+     *        not occur in the expression are ignored
+     * @return an evaluator over the variables of the expression that binding leaves
+     *         free, in the same order as in variables(), whose value for any values of
+     *         those variables equals this evaluator's value with binding added
+     */
+    public CompiledExpression residual(Map<String, Double> binding) {
+        final BitSet bound = new BitSet(variables.length);
+        final double[] values = new double[variables.length];
+        for (int slot = 0; slot < variables.length; slot++) {
+            final Double value = binding.get(variables[slot]);
+            if (value != null) {
+                bound.set(slot);
+                values[slot] = value;
+            }
+        }
+        Residual residual;
+        synchronized (this) {
+            if (residuals == null) {
+                residuals = new LinkedHashMap<BitSet, Residual>(16, 0.75f, true) {
+                    private static final long serialVersionUID = 1;
+                    @Override protected boolean removeEldestEntry(Map.Entry<BitSet, Residual> eldest) {
+                        return size() > RESIDUAL_CAPACITY;
+                    }
+                };
+            }
+            residual = residuals.get(bound);
+        }
+        if (residual == null) {
+            residual = new Residual(bound);
+            synchronized (this) {
+                residuals.put(bound, residual);
+            }
+        }
+        return residual.instantiate(values);
+    }
+    
+    /**
+     * Evaluate the expression over many rows at once.
+     * 
+     * Rows are processed in blocks of BLOCK_SIZE, and each instruction of the
+     * program runs as one simple loop over a block of primitive doubles,
+     * a shape the JIT compiler can unroll and vectorize.
+     * 
+     * @param columns columns[i][r] is the value of the variable in slot i on row r;
+     *        requires columns.length >= variables().size() and every column to have
+     *        at least rows entries
+     * @param rows number of rows to evaluate, nonnegative
+     * @return an array whose entry r is the value of the expression on row r
+     */
+    public double[] evaluateBatch(double[][] columns, int rows) {
+        final double[] result = new double[rows];
+        final double[][] registers = new double[this.registers][BLOCK_SIZE];
+        final double[] output = registers[targets[opcodes.length - 1]];
+        for (int start = 0; start < rows; start += BLOCK_SIZE) {
+            final int length = Math.min(BLOCK_SIZE, rows - start);
+            for (int pc = 0; pc < opcodes.length; pc++) {
+                final double[] target = registers[targets[pc]];
+                switch (opcodes[pc]) {
+                case CONSTANT:
+                    Arrays.fill(target, 0, length, constants[first[pc]]);
+                    break;
+                case LOAD:
+                    System.arraycopy(columns[first[pc]], start, target, 0, length);
+                    break;
+                case ADD: {
+                    final double[] left = registers[first[pc]], right = registers[second[pc]];
+                    for (int i = 0; i < length; i++) {
+                        target[i] = left[i] + right[i];
+                    }
+                    break;
+                }
+                case MULTIPLY: {
+                    final double[] left = registers[first[pc]], right = registers[second[pc]];
+                    for (int i = 0; i < length; i++) {
+                        target[i] = left[i] * right[i];
+                    }
+                    break;
+                }
+                default:
+                    throw new AssertionError("bad opcode " + opcodes[pc]);
+                }
+            }
+            System.arraycopy(output, 0, result, start, length);
+        }
+        return result;
+    }
+    
+    /**
+     * Evaluate the expression over many rows at once.
+     * @param columns maps each variable of the expression to a column of values;
+     *        all those columns must have the same length
+     * @return an array whose entry r is the value of the expression with every
+     *         variable bound to entry r of its column
+     * @throws IllegalArgumentException if a variable of the expression has no column,
+     *         or the columns differ in length
+     */
+    public double[] evaluateBatch(Map<String, double[]> columns) {
+        final double[][] slots = new double[variables.length][];
+        int rows = -1;
+        for (int i = 0; i < variables.length; i++) {
+            slots[i] = columns.get(variables[i]);
+            if (slots[i] == null) {
+                throw new IllegalArgumentException("no column for variable " + variables[i]);
+            }
+            if (rows >= 0 && slots[i].length != rows) {
+                throw new IllegalArgumentException("columns differ in length");
+            }
+            rows = slots[i].length;
+        }
+        if (rows < 0) {
+            // no variables: one row per entry of any supplied column, else a single row
+            rows = columns.isEmpty() ? 1 : columns.values().iterator().next().length;
+        }
+        return evaluateBatch(slots, rows);
+    }
+    
+    /**
+     * @param environment maps variables to values
+     * @return the slot values for environment
+     * @throws IllegalArgumentException if a variable of the expression is unbound
+     */
+    double[] bind(Map<String, Double> environment) {
+        final double[] values = new double[variables.length];
+        for (int i = 0; i < variables.length; i++) {
+            final Double value = environment.get(variables[i]);
+            if (value == null) {
+                throw new IllegalArgumentException("unbound variable " + variables[i]);
+            }
+            values[i] = value;
+        }
+        return values;
+    }
+    
+    /**
+     * @param environment environment indexed by variable id
+     * @return the slot values for environment
+     * @throws IllegalArgumentException if a variable of the expression is unbound
+     */
+    double[] bind(double[] environment) {
+        final double[] values = new double[symbols.length];
+        for (int i = 0; i < symbols.length; i++) {
+            if (!Symbols.isBound(environment, symbols[i])) {
+                throw new IllegalArgumentException("unbound variable " + variables[i]);
+            }
+            values[i] = environment[symbols[i]];
+        }
+        return values;
+    }
+    
+    /**
+     * @param environment environment indexed by variable id
+     * @return true iff environment binds every variable of the expression
+     */
+    boolean isClosedUnder(double[] environment) {
+        for (int symbol : symbols) {
+            if (!Symbols.isBound(environment, symbol)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * @param environment maps variables to values
+     * @return true iff environment binds every variable of the expression
+     */
+    boolean isClosedUnder(Map<String, ?> environment) {
+        for (String variable : variables) {
+            if (!environment.containsKey(variable)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private static int[] toArray(List<Integer> list) {
+        final int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+    
+    /**
+     * The shape of a residual program for one set of bound slots. Instructions
+     * that depend on no free variable are fixed: they are computed for each
+     * binding, and those whose values the free part uses become the residual's
+     * constants.
+     */
+    private final class Residual {
+        // fixed instructions of the source program, in order
+        private final int[] fixed;
+        // source instruction whose value is each constant of program
+        private final int[] boundaries;
+        // residual program, with placeholder constants
+        private final CompiledExpression program;
+        
+        /**
+         * Make the template for a set of bound slots.
+         * @param bound slots of the source program that are bound
+         */
+        Residual(BitSet bound) {
+            final int n = opcodes.length;
+            final boolean[] free = new boolean[n];
+            final List<Integer> fixedList = new ArrayList<>();
+            for (int pc = 0; pc < n; pc++) {
+                switch (opcodes[pc]) {
+                case CONSTANT:
+                    break;
+                case LOAD:
+                    free[pc] = !bound.get(first[pc]);
+                    break;
+                default:
+                    free[pc] = free[firstInstruction[pc]] || free[secondInstruction[pc]];
+                    break;
+                }
+                if (!free[pc]) {
+                    fixedList.add(pc);
+                }
+            }
+            fixed = toArray(fixedList);
+            
+            // the residual's operands are its own instruction indices: a free
+            // source instruction maps to its copy, a fixed one to a constant load
+            final byte[] residualOpcodes = new byte[n];
+            final int[] operandA = new int[n], operandB = new int[n];
+            final int[] copy = new int[n];
+            Arrays.fill(copy, -1);
+            final List<Integer> boundaryList = new ArrayList<>();
+            final List<String> freeVariables = new ArrayList<>();
+            final List<Integer> freeSymbols = new ArrayList<>();
+            int size = 0;
+            for (int pc = 0; pc < n; pc++) {
+                if (!free[pc] && pc < n - 1) {
+                    continue;
+                }
+                if (!free[pc]) {
+                    // the whole result is fixed
+                    boundaryList.add(pc);
+                    residualOpcodes[size] = CONSTANT;
+                    operandA[size++] = 0;
+                } else if (opcodes[pc] == LOAD) {
+                    freeVariables.add(variables[first[pc]]);
+                    freeSymbols.add(symbols[first[pc]]);
+                    residualOpcodes[size] = LOAD;
+                    operandA[size] = freeVariables.size() - 1;
+                    copy[pc] = size++;
+                } else {
+                    for (int operand : new int[] { firstInstruction[pc], secondInstruction[pc] }) {
+                        if (copy[operand] < 0) {
+                            boundaryList.add(operand);
+                            residualOpcodes[size] = CONSTANT;
+                            operandA[size] = boundaryList.size() - 1;
+                            copy[operand] = size++;
+                        }
+                    }
+                    residualOpcodes[size] = opcodes[pc];
+                    operandA[size] = copy[firstInstruction[pc]];
+                    operandB[size] = copy[secondInstruction[pc]];
+                    copy[pc] = size++;
+                }
+            }
+            boundaries = toArray(boundaryList);
+            program = assemble(residualOpcodes, operandA, operandB, size, new double[boundaries.length],
+                freeVariables.toArray(new String[0]), toArray(freeSymbols));
+        }
+        
+        /**
+         * @param values values[slot] is the value of each bound slot of the source program
+         * @return the residual program for those values
+         */
+        CompiledExpression instantiate(double[] values) {
+            final double[] value = new double[opcodes.length];
+            for (int pc : fixed) {
+                switch (opcodes[pc]) {
+                case CONSTANT:
+                    value[pc] = constants[first[pc]];
+                    break;
+                case LOAD:
+                    value[pc] = values[first[pc]];
+                    break;
+                case ADD:
+                    value[pc] = value[firstInstruction[pc]] + value[secondInstruction[pc]];
+                    break;
+                case MULTIPLY:
+                    value[pc] = value[firstInstruction[pc]] * value[secondInstruction[pc]];
+                    break;
+                default:
+                    throw new AssertionError("bad opcode " + opcodes[pc]);
+                }
+            }
+            final double[] residualConstants = new double[boundaries.length];
+            for (int k = 0; k < boundaries.length; k++) {
+                residualConstants[k] = value[boundaries[k]];
+            }
+            return new CompiledExpression(program.opcodes, program.first, program.second, program.targets,
+                program.firstInstruction, program.secondInstruction, residualConstants,
+                program.variables, program.symbols, program.registers);
+        }
+    }
+    
+    /**
+     * Assign registers to a program whose operands are instruction indices, by
+     * linear scan: an instruction's register is released after its last use,
+     * and reused by later instructions.
+     * @param opcodes opcodes of the program, in opcodes[0..size)
+     * @param operandA first operand of each instruction: a constant index, a slot,
+     *        or an earlier instruction index, according to its opcode
+     * @param operandB second operand of each ADD or MULTIPLY, an earlier instruction index
+     * @param size number of instructions, at least 1; the last one is the result
+     * @param constants constant pool
+     * @param variables variable of each slot
+     * @param symbols id of each slot's variable
+     * @return the program, ready to evaluate
+     */
+    private static CompiledExpression assemble(byte[] opcodes, int[] operandA, int[] operandB, int size,
+            double[] constants, String[] variables, int[] symbols) {
+        final int root = size - 1;
+        final int[] lastUse = new int[size];
+        for (int i = 0; i < size; i++) {
+            lastUse[i] = i;
+            if (opcodes[i] == ADD || opcodes[i] == MULTIPLY) {
+                lastUse[operandA[i]] = i;
+                lastUse[operandB[i]] = i;
+            }
+        }
+        lastUse[root] = size;
+        final int[] targets = new int[size];
+        final int[] free = new int[size];
+        int freeCount = 0;
+        int registers = 0;
+        final int[] firstRegister = new int[size];
+        final int[] secondRegister = new int[size];
+        for (int i = 0; i < size; i++) {
+            if (opcodes[i] == ADD || opcodes[i] == MULTIPLY) {
+                firstRegister[i] = targets[operandA[i]];
+                secondRegister[i] = targets[operandB[i]];
+                if (lastUse[operandA[i]] == i) {
+                    free[freeCount++] = targets[operandA[i]];
+                }
+                if (lastUse[operandB[i]] == i && operandB[i] != operandA[i]) {
+                    free[freeCount++] = targets[operandB[i]];
+                }
+            } else {
+                firstRegister[i] = operandA[i];
+            }
+            targets[i] = freeCount > 0 ? free[--freeCount] : registers++;
+        }
+        return new CompiledExpression(Arrays.copyOf(opcodes, size), firstRegister,
+            secondRegister, targets, Arrays.copyOf(operandA, size), Arrays.copyOf(operandB, size),
+            constants, variables, symbols, registers);
+    }
+    
+    /**
+     * Emits the program for one expression, numbering values so that each
+     * distinct subexpression gets one instruction, then assigns registers.
+     */
+    private static class Compiler implements Traversal.Fold<Integer> {
+        private byte[] opcodes = new byte[16];
+        private int[] first = new int[16];
+        private int[] second = new int[16];
+        private int size = 0;
+        private final Map<Long, Integer> constantInstructions = new HashMap<>();
+        private final List<Double> constants = new ArrayList<>();
+        private final Map<String, Integer> variableInstructions = new HashMap<>();
+        private final List<String> variables = new ArrayList<>();
+        private final List<Integer> symbols = new ArrayList<>();
+        private final Map<Long, Integer> sumInstructions = new HashMap<>();
+        private final Map<Long, Integer> productInstructions = new HashMap<>();
+        
+        CompiledExpression compile(Expression expression) {
+            final int root = Traversal.foldShared(expression, this);
+            assert root == size - 1;
+            final double[] constantArray = new double[constants.size()];
+            for (int i = 0; i < constantArray.length; i++) {
+                constantArray[i] = constants.get(i);
+            }
+            return assemble(opcodes, first, second, size, constantArray,
+                variables.toArray(new String[0]), toArray(symbols));
+        }
+        
+        @Override public Integer number(Number number) {
+            final double value = number.getValue();
+            final long key = Double.doubleToLongBits(value);
+            Integer instruction = constantInstructions.get(key);
+            if (instruction == null) {
+                constants.add(value);
+                instruction = emit(CONSTANT, constants.size() - 1, 0);
+                constantInstructions.put(key, instruction);
+            }
+            return instruction;
+        }
+        
+        @Override public Integer variable(Variable variable) {
+            final String name = variable.getName();
+            Integer instruction = variableInstructions.get(name);
+            if (instruction == null) {
+                variables.add(name);
+                symbols.add(variable.getId());
+                instruction = emit(LOAD, variables.size() - 1, 0);
+                variableInstructions.put(name, instruction);
+            }
+            return instruction;
+        }
+        
+        @Override public Integer addition(Addition sum, Integer left, Integer right) {
+            return combine(ADD, sumInstructions, left, right);
+        }
+        
+        @Override public Integer multiplication(Multiplication product, Integer left, Integer right) {
+            return combine(MULTIPLY, productInstructions, left, right);
+        }
+        
+        @Override public Integer sum(Sum sum, List<Integer> operands) {
+            int result = operands.get(operands.size() - 1);
+            for (int i = operands.size() - 2; i >= 0; i--) {
+                result = combine(ADD, sumInstructions, operands.get(i), result);
+            }
+            return result;
+        }
+        
+        @Override public Integer product(Product product, List<Integer> operands) {
+            int result = operands.get(operands.size() - 1);
+            for (int i = operands.size() - 2; i >= 0; i--) {
+                result = combine(MULTIPLY, productInstructions, operands.get(i), result);
+            }
+            return result;
+        }
+        
+        /**
+         * @return the instruction computing left (op) right, emitting it unless an
+         *         earlier instruction computes the same value; + and * on doubles
+         *         are commutative, so operand order does not matter
+         */
+        private int combine(byte opcode, Map<Long, Integer> instructions, int left, int right) {
+            final long key = ((long) Math.min(left, right) << 32) | Math.max(left, right);
+            Integer instruction = instructions.get(key);
+            if (instruction == null) {
+                instruction = emit(opcode, left, right);
+                instructions.put(key, instruction);
+            }
+            return instruction;
+        }
+        
+        private int emit(byte opcode, int a, int b) {
+            if (size == opcodes.length) {
+                opcodes = Arrays.copyOf(opcodes, size * 2);
+                first = Arrays.copyOf(first, size * 2);
+                second = Arrays.copyOf(second, size * 2);
+            }
+            opcodes[size] = opcode;
+            first[size] = a;
+            second[size] = b;
+            return size++;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package expressivo;
+
+import java.util.List;
+
+/**
+ * Memoizing symbolic differentiation.
+ * 
+ * Each distinct subtree is differentiated once per call, and its derivative
+ * is reused wherever the subtree occurs again, so the result is a DAG that
+ * shares subterms instead of a tree that copies them. Subtrees are matched
+ * by identity; trees built by Expression.parse or the Expression factories
+ * are interned, so every structurally repeated subtree is found.
+ * Derivatives are built with the simplifying factories, so the zeros and ones
+ * produced by differentiating leaves are folded away as they appear.
+ * The traversal runs on explicit stacks, so it handles expressions of any depth.
+ */
+class Differentiator implements Traversal.Fold<Expression> {
+    
+    // Abstraction function:
+    //   AF(variable) = the partial derivative operator d/d(variable)
+    // Rep invariant:
+    //   variable is a nonempty string of letters
+    // Safety from rep exposure:
+    //   variable is private, final and immutable
+    
+    private final String variable;
+    
+    private Differentiator(String variable) {
+        this.variable = variable;
+    }
+    
+    /**
+     * Differentiate an expression with respect to a variable.
+     * @param expression the expression to differentiate
+     * @param variable the variable to differentiate by, a case-sensitive nonempty string of letters.
+     * @return expression's derivative with respect to variable, in which
+     *         the derivative of every repeated subtree is a shared node
+     */
+    static Expression differentiate(Expression expression, String variable) {
+        final long start = Metrics.start();
+        final Expression derivative = Traversal.foldShared(expression, new Differentiator(variable));
+        final long nanos = Metrics.elapsed(start);
+        if (nanos >= 0) {
+            Metrics.record(Metrics.Operation.DIFFERENTIATE, nanos,
+                Metrics.size(expression), Metrics.size(derivative), Metrics.depth(expression));
+        }
+        return derivative;
+    }
+    
+    @Override public Expression number(Number number) {
+        return number.differentiate(variable);
+    }
+    
+    @Override public Expression variable(Variable variable) {
+        return variable.differentiate(this.variable);
+    }
+    
+    @Override public Expression addition(Addition sum, Expression dLeft, Expression dRight) {
+        // d(u + v)/dx = du/dx + dv/dx
+        return Expression.simplifiedAdd(dLeft, dRight);
+    }
+    
+    @Override public Expression multiplication(Multiplication product, Expression dLeft, Expression dRight) {
+        // d(u * v)/dx = u'v + uv'
+        return Expression.simplifiedAdd(
+            Expression.simplifiedMultiplication(dLeft, product.right()),
+            Expression.simplifiedMultiplication(product.left(), dRight));
+    }
+    
+    @Override public Expression sum(Sum sum, List<Expression> derivatives) {
+        Expression result = derivatives.get(derivatives.size() - 1);
+        for (int i = derivatives.size() - 2; i >= 0; i--) {
+            result = Expression.simplifiedAdd(derivatives.get(i), result);
+        }
+        return result;
+    }
+    
+    @Override public Expression product(Product product, List<Expression> derivatives) {
+        // the product rule applied along the chain from the right, where
+        // suffix is the product of the operands after operand i
+        final int last = derivatives.size() - 1;
+        Expression suffix = product.operand(last);
+        Expression result = derivatives.get(last);
+        for (int i = last - 1; i >= 0; i--) {
+            result = Expression.simplifiedAdd(
+                Expression.simplifiedMultiplication(derivatives.get(i), suffix),
+                Expression.simplifiedMultiplication(product.operand(i), result));
+            suffix = Expression.multiplication(product.operand(i), suffix);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,263 @@
+package expressivo;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * Hand-written operator-precedence parser for the Expression grammar.
+ * 
+ * Reads the input once, left to right, and builds the AST directly through
+ * the Expression factories without creating tokens or a parse tree.
+ * Operands and pending operators are kept on explicit stacks, so deeply
+ * nested or very long input does not recurse on the Java stack.
+ * Like ExpressionMaker, chains of + and * are grouped from right to left, and
+ * each maximal chain, even one continued inside parentheses, is kept as a
+ * Chain until it is complete and then made into one flat node.
+ * 
+ * The input, a String or a Reader, is consumed through a fixed-size buffer,
+ * so apart from the AST the parser needs memory only for that buffer, the
+ * current number or variable name, and the pending operators.
+ */
+class DirectParser {
+    
+    // Abstraction function:
+    //   AF(source, consumed, buffer, pos, operands, operators) = a partial parse
+    //     of the first consumed + pos characters of the source, where
+    //     operands[0..operandCount) are the ASTs of completed operands, each an
+    //     Expression or a Chain not yet made into a node, and
+    //     operators[0..operatorCount) are the '+', '*' and '(' still waiting for
+    //     their right-hand side or closing parenthesis
+    // Rep invariant:
+    //   exactly one of input and reader is non-null
+    //   0 <= pos <= limit <= buffer.length
+    //   operators between two '(' entries never have a '*' below a '+', i.e.
+    //     operator precedence is nondecreasing up the stack
+    // Safety from rep exposure:
+    //   all fields are private; the parser is used by a single call of parse()
+    
+    private static final int BUFFER_SIZE = 8192;
+    
+    private final String input;
+    private int inputPos = 0;
+    private final Reader reader;
+    private final char[] buffer;
+    private int pos = 0, limit = 0;
+    private long consumed = 0;
+    private final StringBuilder token = new StringBuilder();
+    private Object[] operands = new Object[8];
+    private int operandCount = 0;
+    private char[] operators = new char[8];
+    private int operatorCount = 0;
+    
+    private DirectParser(String input, Reader reader) {
+        this.input = input;
+        this.reader = reader;
+        this.buffer = new char[input != null ? Math.min(BUFFER_SIZE, Math.max(input.length(), 1)) : BUFFER_SIZE];
+    }
+    
+    /**
+     * Parse an expression.
+     * @param input expression to parse, as defined in the PS3 handout.
+     * @return expression AST for the input, equal to Expression.parse(input)
+     * @throws IllegalArgumentException if the expression is invalid
+     */
+    static Expression parse(String input) {
+        try {
+            return new DirectParser(input, null).parseRoot();
+        } catch (IOException ioe) {
+            throw new AssertionError("reading a String does not throw IOException", ioe);
+        }
+    }
+    
+    /**
+     * Parse an expression from a character stream, reading it in bounded chunks
+     * until the end of the stream. The reader is not closed.
+     * @param reader source of the expression to parse, as defined in the PS3 handout.
+     * @return expression AST for the text read
+     * @throws IllegalArgumentException if the expression is invalid
+     * @throws IOException if reader throws IOException
+     */
+    static Expression parse(Reader reader) throws IOException {
+        return new DirectParser(null, reader).parseRoot();
+    }
+    
+    private Expression parseRoot() throws IOException {
+        boolean expectOperand = true;
+        while (true) {
+            skipSpaces();
+            final int c = peek();
+            if (c < 0) {
+                break;
+            }
+            if (expectOperand) {
+                if (c == '(') {
+                    pushOperator('(');
+                    pos++;
+                } else if (isDigit(c)) {
+                    pushOperand(Expression.number(Double.valueOf(scanNumber())));
+                    expectOperand = false;
+                } else if (isLetter(c)) {
+                    pushOperand(Expression.variable(scanVariable()));
+                    expectOperand = false;
+                } else {
+                    throw error("expected a number, variable or '('");
+                }
+            } else {
+                if (c == '+' || c == '*') {
+                    // operators are right-associative, so only reduce strictly
+                    // tighter-binding operators already on the stack
+                    while (operatorCount > 0 && precedence(operators[operatorCount - 1]) > precedence((char) c)) {
+                        reduce();
+                    }
+                    pushOperator((char) c);
+                    pos++;
+                    expectOperand = true;
+                } else if (c == ')') {
+                    while (operatorCount > 0 && operators[operatorCount - 1] != '(') {
+                        reduce();
+                    }
+                    if (operatorCount == 0) {
+                        throw error("unmatched ')'");
+                    }
+                    operatorCount--;
+                    pos++;
+                } else {
+                    throw error("expected '+', '*' or ')'");
+                }
+            }
+        }
+        if (expectOperand) {
+            throw error("unexpected end of input");
+        }
+        while (operatorCount > 0) {
+            if (operators[operatorCount - 1] == '(') {
+                throw error("missing ')'");
+            }
+            reduce();
+        }
+        assert operandCount == 1;
+        return Chain.node(operands[0]);
+    }
+    
+    private void reduce() {
+        // every caller goes on to reduce the whole run of equal operators on
+        // top of the stack, so reduce it at once into one chain
+        final char operator = operators[operatorCount - 1];
+        int run = 1;
+        while (run < operatorCount && operators[operatorCount - 1 - run] == operator) {
+            run++;
+        }
+        operatorCount -= run;
+        final boolean isSum = operator == '+';
+        final int first = operandCount - run - 1;
+        // a parenthesized chain of the same operator on the right continues this one
+        Object chain = operands[operandCount - 1];
+        if (!Chain.continues(chain, isSum)) {
+            chain = Chain.node(chain);
+        }
+        for (int i = operandCount - 2; i >= first; i--) {
+            chain = Chain.link(isSum, Chain.node(operands[i]), chain);
+        }
+        Arrays.fill(operands, first, operandCount, null);
+        operandCount = first;
+        pushOperand(chain);
+    }
+    
+    private static int precedence(char operator) {
+        switch (operator) {
+        case '+': return 1;
+        case '*': return 2;
+        default: return 0; // '(' is a barrier that is never reduced past
+        }
+    }
+    
+    /**
+     * @return the next character of the input without consuming it, or -1 at the end of the input
+     */
+    private int peek() throws IOException {
+        if (pos == limit && !fill()) {
+            return -1;
+        }
+        return buffer[pos];
+    }
+    
+    /**
+     * Replace the fully consumed buffer with the next chunk of the input.
+     * @return false iff the input is exhausted
+     */
+    private boolean fill() throws IOException {
+        consumed += limit;
+        pos = 0;
+        limit = 0;
+        if (input != null) {
+            final int n = Math.min(buffer.length, input.length() - inputPos);
+            if (n <= 0) {
+                return false;
+            }
+            input.getChars(inputPos, inputPos + n, buffer, 0);
+            inputPos += n;
+            limit = n;
+        } else {
+            int n;
+            do {
+                n = reader.read(buffer, 0, buffer.length);
+            } while (n == 0);
+            if (n < 0) {
+                return false;
+            }
+            limit = n;
+        }
+        return true;
+    }
+    
+    private String scanNumber() throws IOException {
+        token.setLength(0);
+        for (int c = peek(); c >= 0 && isDigit(c); c = peek()) {
+            token.append((char) c);
+            pos++;
+        }
+        return token.toString();
+    }
+    
+    private String scanVariable() throws IOException {
+        token.setLength(0);
+        for (int c = peek(); c >= 0 && isLetter(c); c = peek()) {
+            token.append((char) c);
+            pos++;
+        }
+        return token.toString();
+    }
+    
+    private void skipSpaces() throws IOException {
+        while (peek() == ' ') {
+            pos++;
+        }
+    }
+    
+    private static boolean isDigit(int c) {
+        return (c >= '0' && c <= '9') || c == '.';
+    }
+    
+    private static boolean isLetter(int c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+    
+    private void pushOperand(Object operand) {
+        if (operandCount == operands.length) {
+            operands = Arrays.copyOf(operands, operandCount * 2);
+        }
+        operands[operandCount++] = operand;
+    }
+    
+    private void pushOperator(char operator) {
+        if (operatorCount == operators.length) {
+            operators = Arrays.copyOf(operators, operatorCount * 2);
+        }
+        operators[operatorCount++] = operator;
+    }
+    
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at position " + (consumed + pos) + " of input");
+    }
+}
@@ -3,18 +3,20 @@
  */
 package expressivo;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
-
-import org.antlr.v4.runtime.ANTLRInputStream;
-import org.antlr.v4.runtime.CharStream;
-import org.antlr.v4.runtime.CommonTokenStream;
-import org.antlr.v4.runtime.TokenStream;
-import org.antlr.v4.runtime.tree.ParseTree;
-import org.antlr.v4.runtime.tree.ParseTreeWalker;
-
-import expressivo.parser.ExpressionLexer;
-import expressivo.parser.ExpressionParser;
-import java.util.Stack;
+import java.util.stream.IntStream;
 
 
 /**
@@ -33,6 +35,7 @@ public interface Expression {
     // Datatype definition
     //   Expression = Add(left:Expression, right:Expression) +
 	//		Multiplication(left:Expression, right:Expression) + 
+	//		Sum(operands:List<Expression>) + Product(operands:List<Expression>) +
 	//		Number(number:double) +
     
     /**
@@ -42,18 +45,108 @@ public interface Expression {
      * @throws IllegalArgumentException if the expression is invalid
      */
 	public static Expression parse(String input) {
-        CharStream stream = new ANTLRInputStream(input);
-        ExpressionLexer lexer = new ExpressionLexer(stream);
-        lexer.reportErrorsAsExceptions();
-        TokenStream tokens = new CommonTokenStream(lexer);
-        ExpressionParser parser = new ExpressionParser(tokens);
-        parser.reportErrorsAsExceptions();
-        
-        ParseTree tree = parser.root();
-        ExpressionMaker maker = new ExpressionMaker();
-        new ParseTreeWalker().walk(maker, tree);
-        return maker.getExpression();
+        final long start = Metrics.start();
+        final Expression expression = AntlrParser.forCurrentThread().parse(input);
+        final long nanos = Metrics.elapsed(start);
+        if (nanos >= 0) {
+            Metrics.record(Metrics.Operation.PARSE, nanos, input.length(),
+                Metrics.size(expression), Metrics.depth(expression));
+        }
+        return expression;
+    }
+    
+    /**
+     * Parse many expressions, spreading the work over all processors. Each
+     * worker thread reuses one lexer and parser for all the inputs it parses.
+     * @param inputs expressions to parse, as defined in the PS3 handout.
+     * @return a list with one entry per input, in the same order, holding either
+     *         parse(input) or the IllegalArgumentException that parse(input) throws
+     */
+    public static List<ParseResult> parseAll(List<String> inputs) {
+        final ParseResult[] results = new ParseResult[inputs.size()];
+        IntStream.range(0, results.length).parallel().forEach(i -> {
+            final String input = inputs.get(i);
+            try {
+                results[i] = ParseResult.valid(input, parse(input));
+            } catch (IllegalArgumentException iae) {
+                results[i] = ParseResult.invalid(input, iae);
+            }
+        });
+        return Collections.unmodifiableList(Arrays.asList(results));
+    }
+    
+    /**
+     * Parse an expression with a chosen parser implementation.
+     * @param input expression to parse, as defined in the PS3 handout.
+     * @param mode parser implementation to use
+     * @return expression AST for the input, equal to parse(input) for every mode
+     * @throws IllegalArgumentException if the expression is invalid
+     */
+    public static Expression parse(String input, ParseMode mode) {
+        switch (mode) {
+        case ANTLR:
+            return parse(input);
+        case ANTLR_SLL:
+        case DIRECT:
+            final long start = Metrics.start();
+            final Expression expression = mode == ParseMode.DIRECT
+                ? DirectParser.parse(input)
+                : AntlrParser.forCurrentThread().parseTwoStage(input);
+            final long nanos = Metrics.elapsed(start);
+            if (nanos >= 0) {
+                Metrics.record(Metrics.Operation.PARSE, nanos, input.length(),
+                    Metrics.size(expression), Metrics.depth(expression));
+            }
+            return expression;
+        default:
+            throw new AssertionError("unknown parse mode " + mode);
+        }
+    }
+    /**
+     * Parse an expression from a character stream without reading the whole text
+     * into memory first. The stream is read in bounded chunks until its end, and
+     * is not closed.
+     * @param reader source of the expression to parse, as defined in the PS3 handout.
+     * @return expression AST for the text read, equal to parse(text)
+     * @throws IllegalArgumentException if the expression is invalid
+     * @throws IOException if reader throws IOException
+     */
+    public static Expression parse(Reader reader) throws IOException {
+        final long start = Metrics.start();
+        final Expression expression = DirectParser.parse(reader);
+        final long nanos = Metrics.elapsed(start);
+        if (nanos >= 0) {
+            Metrics.record(Metrics.Operation.PARSE, nanos, 0,
+                Metrics.size(expression), Metrics.depth(expression));
+        }
+        return expression;
+    }
+    
+    /**
+     * Parse an expression from a channel of UTF-8 text, reading it in bounded
+     * chunks until its end. The channel is not closed.
+     * @param channel source of the expression to parse, as defined in the PS3 handout.
+     * @return expression AST for the text read
+     * @throws IllegalArgumentException if the expression is invalid
+     * @throws IOException if reading the channel fails
+     */
+    public static Expression parse(ReadableByteChannel channel) throws IOException {
+        return parse(Channels.newReader(channel, StandardCharsets.UTF_8.newDecoder(), -1));
     }
+    
+    /**
+     * Parse an expression from a file of UTF-8 text, reading it in bounded chunks.
+     * @param path file containing the expression to parse, as defined in the PS3 handout.
+     * @return expression AST for the file's text
+     * @throws IllegalArgumentException if the expression is invalid
+     * @throws IOException if the file cannot be read
+     */
+    public static Expression parse(Path path) throws IOException {
+        try (ReadableByteChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return parse(channel);
+        }
+    }
+    
     /**
      * @return a parsable representation of this expression, such that
      * for all e:Expression, e.equals(Expression.parse(e.toString())).
@@ -64,6 +157,30 @@ public interface Expression {
      */
     @Override 
     public String toString();
+    
+    /**
+     * Write this expression's toString() representation to a destination,
+     * in one pass over the tree and without building intermediate strings.
+     * @param out destination of the text, e.g. a Writer or StringBuilder
+     * @throws IOException if out throws IOException
+     */
+    public default void appendTo(Appendable out) throws IOException {
+        Traversal.print(this, out);
+    }
+    
+    /**
+     * Append this expression's toString() representation to a builder.
+     * @param out destination of the text
+     * @return out
+     */
+    public default StringBuilder appendTo(StringBuilder out) {
+        try {
+            Traversal.print(this, out);
+        } catch (IOException ioe) {
+            throw new AssertionError("StringBuilder does not throw IOException", ioe);
+        }
+        return out;
+    }
 
     /**
      * @param thatObject any object
@@ -81,32 +198,200 @@ public interface Expression {
     @Override
     public int hashCode();
     
+    /**
+     * @return 64-bit structural fingerprint, computed once when the expression is
+     * constructed, such that for all e1,e2:Expression,
+     *     e1.equals(e2) implies e1.fingerprint() == e2.fingerprint()
+     * and structurally different expressions, including ones with their operands
+     * swapped, have equal fingerprints only with probability about 2^-64.
+     * hashCode() is derived from the fingerprint.
+     */
+    public long fingerprint();
+    
     
     /**
      * @return true is this Expression is a primitive element
      */
     public boolean isPrimitive();
     
+    /**
+     * @param value nonnegative value of the number
+     * @return the shared Expression representing value; structurally equal
+     *         numbers made through this factory are the same object
+     */
+    public static Expression number(double value) {
+        return Interner.intern(new Number(value));
+    }
+    
+    /**
+     * @param name variable name, a case-sensitive nonempty string of letters
+     * @return the shared Expression representing the variable name
+     */
+    public static Expression variable(String name) {
+        return Interner.intern(new Variable(name));
+    }
+    
     /**
      * @param that Expression to be add
-     * @return a new Expression represent add this Expression with other Expression
+     * @return an Expression represent add this Expression with other Expression;
+     *         structurally equal sums made through this factory, sum() or parse are
+     *         the same object, which is the Sum made by sum() or parse if that equal
+     *         chain was made first
      */
     public static Expression add(Expression exp1, Expression exp2) {
-    	return new Addition(exp1, exp2);
+    	return Interner.intern(new Addition(Interner.intern(exp1), Interner.intern(exp2)));
     }
     
     /**
      * @param that Expression to be multiplication
-     * @return a new Expression represent multiplication this Expression with other Expression
+     * @return an Expression represent multiplication this Expression with other Expression;
+     *         structurally equal products made through this factory, product() or parse
+     *         are the same object, which is the Product made by product() or parse if
+     *         that equal chain was made first
      */
     public static Expression multiplication(Expression exp1, Expression exp2) {
-    	return new Multiplication(exp1, exp2);
+    	return Interner.intern(new Multiplication(Interner.intern(exp1), Interner.intern(exp2)));
+    }
+    
+    /**
+     * Make the sum of a chain of operands, e0 + (e1 + (... + en)), as one flat node.
+     * If the last operand is itself a sum, its operands continue the chain, so
+     * the result has no sum as its last operand.
+     * Takes time linear in the number of operands, counting those of that chain;
+     * the parsers instead build each maximal chain into one node only once.
+     * @param operands one or more operands
+     * @return an Expression equal to the right-nested sum of operands: the only
+     *         operand if there is one, the same sum as add() if the chain has two
+     *         operands, and otherwise a Sum, unless an equal chain of binary sums
+     *         was made first by add(), in which case it is that chain; structurally
+     *         equal chains made through this factory, add() or parse are the same object
+     * @throws IllegalArgumentException if operands is empty
+     */
+    public static Expression sum(List<Expression> operands) {
+        if (operands.isEmpty()) {
+            throw new IllegalArgumentException("a sum needs at least one operand");
+        }
+        final List<Expression> chain = new ArrayList<>(operands.subList(0, operands.size() - 1));
+        Expression last = operands.get(operands.size() - 1);
+        while (Traversal.isSum(last)) {
+            chain.add(Traversal.left(last));
+            last = Traversal.right(last);
+        }
+        chain.add(last);
+        if (chain.size() == 1) {
+            return Interner.intern(last);
+        } else if (chain.size() == 2) {
+            return add(chain.get(0), chain.get(1));
+        }
+        final Expression[] interned = new Expression[chain.size()];
+        for (int i = 0; i < interned.length; i++) {
+            interned[i] = Interner.intern(chain.get(i));
+        }
+        return Interner.intern(new Sum(interned));
     }
+    
+    /**
+     * Make the product of a chain of operands, e0 * (e1 * (... * en)), as one flat node.
+     * If the last operand is itself a product, its operands continue the chain, so
+     * the result has no product as its last operand.
+     * Takes time linear in the number of operands, counting those of that chain;
+     * the parsers instead build each maximal chain into one node only once.
+     * @param operands one or more operands
+     * @return an Expression equal to the right-nested product of operands: the only
+     *         operand if there is one, the same product as multiplication() if the
+     *         chain has two operands, and otherwise a Product, unless an equal chain
+     *         of binary products was made first by multiplication(), in which case it
+     *         is that chain; structurally equal chains made through this factory,
+     *         multiplication() or parse are the same object
+     * @throws IllegalArgumentException if operands is empty
+     */
+    public static Expression product(List<Expression> operands) {
+        if (operands.isEmpty()) {
+            throw new IllegalArgumentException("a product needs at least one operand");
+        }
+        final List<Expression> chain = new ArrayList<>(operands.subList(0, operands.size() - 1));
+        Expression last = operands.get(operands.size() - 1);
+        while (Traversal.isProduct(last)) {
+            chain.add(Traversal.left(last));
+            last = Traversal.right(last);
+        }
+        chain.add(last);
+        if (chain.size() == 1) {
+            return Interner.intern(last);
+        } else if (chain.size() == 2) {
+            return multiplication(chain.get(0), chain.get(1));
+        }
+        final Expression[] interned = new Expression[chain.size()];
+        for (int i = 0; i < interned.length; i++) {
+            interned[i] = Interner.intern(chain.get(i));
+        }
+        return Interner.intern(new Product(interned));
+    }
+    
+    /**
+     * Convert an expression to flat form, in which every right-nested chain of
+     * sums is one node made by sum(), and every chain of products one node made
+     * by product(). Expression.parse already returns expressions in flat form.
+     * Takes time linear in the size of expression.
+     * @param expression an expression
+     * @return an expression equal to expression, and the same object as its parse;
+     *         it is in flat form except for chains already made by add() or
+     *         multiplication() before an equal flat node
+     */
+    public static Expression flatten(Expression expression) {
+        return Flattener.flatten(expression);
+    }
+    
+    /**
+     * Make a sum, folding it locally where the result is known: the sum of two
+     * numbers is their total, and 0 is the identity of addition.
+     * @param exp1 left operand
+     * @param exp2 right operand
+     * @return an Expression equal in value to exp1 + exp2: a number if both are
+     *         numbers, exp2 if exp1 is the number 0, exp1 if exp2 is the number 0,
+     *         and otherwise the same sum as add(exp1, exp2)
+     */
+    public static Expression simplifiedAdd(Expression exp1, Expression exp2) {
+        if (exp1 instanceof Number && exp2 instanceof Number) {
+            return number(((Number) exp1).getValue() + ((Number) exp2).getValue());
+        } else if (Number.is(exp1, 0)) {
+            return Interner.intern(exp2);
+        } else if (Number.is(exp2, 0)) {
+            return Interner.intern(exp1);
+        }
+        return add(exp1, exp2);
+    }
+    
+    /**
+     * Make a product, folding it locally where the result is known: the product
+     * of two numbers is a number, 0 annihilates, and 1 is the identity.
+     * @param exp1 left operand
+     * @param exp2 right operand
+     * @return an Expression equal in value to exp1 * exp2: a number if both are
+     *         numbers, the number 0 if either is the number 0, exp2 if exp1 is
+     *         the number 1, exp1 if exp2 is the number 1, and otherwise the same
+     *         product as multiplication(exp1, exp2)
+     */
+    public static Expression simplifiedMultiplication(Expression exp1, Expression exp2) {
+        if (exp1 instanceof Number && exp2 instanceof Number) {
+            return number(((Number) exp1).getValue() * ((Number) exp2).getValue());
+        } else if (Number.is(exp1, 0) || Number.is(exp2, 0)) {
+            return number(0);
+        } else if (Number.is(exp1, 1)) {
+            return Interner.intern(exp2);
+        } else if (Number.is(exp2, 1)) {
+            return Interner.intern(exp1);
+        }
+        return multiplication(exp1, exp2);
+    }
+    
    
     /**
      * Differentiate an expression with respect to a variable.
      * @param variable the variable to differentiate by, a case-sensitive nonempty string of letters.
-     * @return expression's derivative with respect to variable.
+     * @return expression's derivative with respect to variable, folded as it is
+     *         built by simplifiedAdd and simplifiedMultiplication, so that it has
+     *         no sums with 0, no products with 0 or 1, and no operations on two numbers
      */
     public Expression differentiate(String variable);
 }
@@ -0,0 +1,375 @@
+package expressivo;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A mutable arena of expression nodes stored as flat primitive arrays.
+ * 
+ * Instead of one object per node, node i is a kind byte, two int operands and,
+ * for numbers, a slot in a constant pool. An expression is named by the index
+ * of its root node. Operands always have smaller indices than the nodes that
+ * use them, so every operation below processes the reachable nodes in index
+ * order, with no recursion and no per-node objects. Each distinct number and
+ * variable is stored once, and subtrees shared by identity in an imported
+ * Expression stay shared.
+ */
+public final class ExpressionArena {
+    
+    // Abstraction function:
+    //   AF(kinds, first, second, constants, names, size) = the nodes 0..size-1,
+    //     where node i is
+    //       the number constants[first[i]]        if kinds[i] == NUMBER
+    //       the variable names.get(first[i])      if kinds[i] == VARIABLE
+    //       node first[i] + node second[i]        if kinds[i] == ADD
+    //       node first[i] * node second[i]        if kinds[i] == MULTIPLY
+    // Rep invariant:
+    //   kinds, first and second have equal length >= size
+    //   for ADD and MULTIPLY nodes i, 0 <= first[i] < i and 0 <= second[i] < i
+    //   numberNodes and variableNodes map each value and name to its unique node
+    //   constants are nonnegative, names are nonempty strings of letters
+    // Safety from rep exposure:
+    //   all fields are private; arrays and lists are never returned
+    
+    private static final byte NUMBER = 0, VARIABLE = 1, ADD = 2, MULTIPLY = 3;
+    
+    private byte[] kinds = new byte[64];
+    private int[] first = new int[64];
+    private int[] second = new int[64];
+    private int size = 0;
+    private double[] constants = new double[16];
+    private int constantCount = 0;
+    private final List<String> names = new ArrayList<>();
+    private final Map<Double, Integer> numberNodes = new HashMap<>();
+    private final Map<String, Integer> variableNodes = new HashMap<>();
+    
+    /** Create an empty arena. */
+    public ExpressionArena() {
+    }
+    
+    /** @return number of nodes in this arena */
+    public int size() {
+        return size;
+    }
+    
+    /**
+     * @param value nonnegative value
+     * @return the node for the number value
+     */
+    public int number(double value) {
+        final Integer existing = numberNodes.get(value);
+        if (existing != null) {
+            return existing;
+        }
+        if (constantCount == constants.length) {
+            constants = Arrays.copyOf(constants, constantCount * 2);
+        }
+        constants[constantCount] = value;
+        final int node = append(NUMBER, constantCount++, 0);
+        numberNodes.put(value, node);
+        return node;
+    }
+    
+    /**
+     * @param name variable name, a case-sensitive nonempty string of letters
+     * @return the node for the variable name
+     */
+    public int variable(String name) {
+        final Integer existing = variableNodes.get(name);
+        if (existing != null) {
+            return existing;
+        }
+        names.add(name);
+        final int node = append(VARIABLE, names.size() - 1, 0);
+        variableNodes.put(name, node);
+        return node;
+    }
+    
+    /**
+     * @param left a node of this arena
+     * @param right a node of this arena
+     * @return a new node for left + right
+     */
+    public int add(int left, int right) {
+        checkNode(left);
+        checkNode(right);
+        return append(ADD, left, right);
+    }
+    
+    /**
+     * @param left a node of this arena
+     * @param right a node of this arena
+     * @return a new node for left * right
+     */
+    public int multiply(int left, int right) {
+        checkNode(left);
+        checkNode(right);
+        return append(MULTIPLY, left, right);
+    }
+    
+    /**
+     * Copy an expression into this arena.
+     * @param expression an expression
+     * @return the node for expression
+     */
+    public int load(Expression expression) {
+        return Traversal.foldShared(expression, new Traversal.Fold<Integer>() {
+            @Override public Integer number(Number number) {
+                return ExpressionArena.this.number(number.getValue());
+            }
+            @Override public Integer variable(Variable variable) {
+                return ExpressionArena.this.variable(variable.getName());
+            }
+            @Override public Integer addition(Addition sum, Integer left, Integer right) {
+                return add(left, right);
+            }
+            @Override public Integer multiplication(Multiplication product, Integer left, Integer right) {
+                return multiply(left, right);
+            }
+        });
+    }
+    
+    /**
+     * @param node a node of this arena
+     * @return the expression for node, built through the interning Expression factories,
+     *         with each chain of sums or products made into one node as Expression.parse
+     *         makes it, so it is the same object as the parse of its text
+     */
+    public Expression toExpression(int node) {
+        final boolean[] reachable = reachable(node);
+        // each result is an Expression or a Chain, so chains of sums and
+        // products become flat nodes as the parsers make them
+        final Chain.Nodes nodes = new Chain.Nodes();
+        final Object[] results = new Object[node + 1];
+        for (int i = 0; i <= node; i++) {
+            if (!reachable[i]) {
+                continue;
+            }
+            switch (kinds[i]) {
+            case NUMBER:
+                results[i] = Expression.number(constants[first[i]]);
+                break;
+            case VARIABLE:
+                results[i] = Expression.variable(names.get(first[i]));
+                break;
+            case ADD:
+                results[i] = nodes.link(true, results[first[i]], results[second[i]]);
+                break;
+            default:
+                results[i] = nodes.link(false, results[first[i]], results[second[i]]);
+                break;
+            }
+        }
+        return nodes.node(results[node]);
+    }
+    
+    /**
+     * Differentiate in place, appending the derivative's nodes to this arena.
+     * Each reachable node is differentiated once, so shared subtrees give shared derivatives,
+     * and zeros and ones are folded away as in Expression.simplifiedAdd and simplifiedMultiplication.
+     * @param node a node of this arena
+     * @param variable the variable to differentiate by, a case-sensitive nonempty string of letters.
+     * @return the node for the derivative of node with respect to variable,
+     *         structurally equal to toExpression(node).differentiate(variable)
+     */
+    public int differentiate(int node, String variable) {
+        final boolean[] reachable = reachable(node);
+        final int[] derivatives = new int[node + 1];
+        for (int i = 0; i <= node; i++) {
+            if (!reachable[i]) {
+                continue;
+            }
+            switch (kinds[i]) {
+            case NUMBER:
+                derivatives[i] = number(0);
+                break;
+            case VARIABLE:
+                derivatives[i] = number(names.get(first[i]).equals(variable) ? 1 : 0);
+                break;
+            case ADD:
+                // d(u + v)/dx = du/dx + dv/dx
+                derivatives[i] = simplifiedAdd(derivatives[first[i]], derivatives[second[i]]);
+                break;
+            default:
+                // d(u * v)/dx = u'v + uv'
+                derivatives[i] = simplifiedAdd(
+                    simplifiedMultiply(derivatives[first[i]], second[i]),
+                    simplifiedMultiply(first[i], derivatives[second[i]]));
+                break;
+            }
+        }
+        return derivatives[node];
+    }
+    
+    /**
+     * @param node a node of this arena
+     * @param environment maps variables to values; must bind every variable under node
+     * @return the value of node under environment
+     * @throws IllegalArgumentException if a variable under node is unbound
+     */
+    public double evaluate(int node, Map<String, Double> environment) {
+        final boolean[] reachable = reachable(node);
+        final double[] values = new double[node + 1];
+        for (int i = 0; i <= node; i++) {
+            if (!reachable[i]) {
+                continue;
+            }
+            switch (kinds[i]) {
+            case NUMBER:
+                values[i] = constants[first[i]];
+                break;
+            case VARIABLE: {
+                final Double value = environment.get(names.get(first[i]));
+                if (value == null) {
+                    throw new IllegalArgumentException("unbound variable " + names.get(first[i]));
+                }
+                values[i] = value;
+                break;
+            }
+            case ADD:
+                values[i] = values[first[i]] + values[second[i]];
+                break;
+            default:
+                values[i] = values[first[i]] * values[second[i]];
+                break;
+            }
+        }
+        return values[node];
+    }
+    
+    /**
+     * Write the text of a node, identical to toExpression(node).toString().
+     * @param node a node of this arena
+     * @param out destination of the text
+     * @throws IOException if out throws IOException
+     */
+    public void print(int node, Appendable out) throws IOException {
+        checkNode(node);
+        // pending[0..top) holds nodes still to print, or the encoded characters
+        // between them as -1 - c, with the next item to print on top
+        int[] pending = new int[16];
+        int top = 0;
+        pending[top++] = node;
+        while (top > 0) {
+            final int item = pending[--top];
+            if (item < 0) {
+                out.append((char) (-1 - item));
+                continue;
+            }
+            switch (kinds[item]) {
+            case NUMBER:
+                out.append(Number.format(constants[first[item]]));
+                continue;
+            case VARIABLE:
+                out.append(names.get(first[item]));
+                continue;
+            default:
+                break;
+            }
+            if (top + 7 > pending.length) {
+                pending = Arrays.copyOf(pending, pending.length * 2);
+            }
+            top = pushOperand(pending, top, second[item]);
+            pending[top++] = -1 - (kinds[item] == ADD ? '+' : '*');
+            top = pushOperand(pending, top, first[item]);
+        }
+    }
+    
+    /**
+     * @param node a node of this arena
+     * @return the text of node, identical to toExpression(node).toString()
+     */
+    public String toString(int node) {
+        final StringBuilder out = new StringBuilder();
+        try {
+            print(node, out);
+        } catch (IOException ioe) {
+            throw new AssertionError("StringBuilder does not throw IOException", ioe);
+        }
+        return out.toString();
+    }
+    
+    /**
+     * @return a node equal in value to left + right, folded as by Expression.simplifiedAdd
+     */
+    private int simplifiedAdd(int left, int right) {
+        if (kinds[left] == NUMBER && kinds[right] == NUMBER) {
+            return number(constants[first[left]] + constants[first[right]]);
+        } else if (isNumber(left, 0)) {
+            return right;
+        } else if (isNumber(right, 0)) {
+            return left;
+        }
+        return add(left, right);
+    }
+    
+    /**
+     * @return a node equal in value to left * right, folded as by Expression.simplifiedMultiplication
+     */
+    private int simplifiedMultiply(int left, int right) {
+        if (kinds[left] == NUMBER && kinds[right] == NUMBER) {
+            return number(constants[first[left]] * constants[first[right]]);
+        } else if (isNumber(left, 0) || isNumber(right, 0)) {
+            return number(0);
+        } else if (isNumber(left, 1)) {
+            return right;
+        } else if (isNumber(right, 1)) {
+            return left;
+        }
+        return multiply(left, right);
+    }
+    
+    private boolean isNumber(int node, double value) {
+        return kinds[node] == NUMBER && constants[first[node]] == value;
+    }
+    
+    private int pushOperand(int[] pending, int top, int operand) {
+        if (kinds[operand] == NUMBER || kinds[operand] == VARIABLE) {
+            pending[top++] = operand;
+        } else {
+            pending[top++] = -1 - ')';
+            pending[top++] = operand;
+            pending[top++] = -1 - '(';
+        }
+        return top;
+    }
+    
+    /**
+     * @return reachable[i] iff node i is under node; length node + 1
+     */
+    private boolean[] reachable(int node) {
+        checkNode(node);
+        final boolean[] reachable = new boolean[node + 1];
+        reachable[node] = true;
+        // operands have smaller indices, so one downward sweep finds every descendant
+        for (int i = node; i >= 0; i--) {
+            if (reachable[i] && (kinds[i] == ADD || kinds[i] == MULTIPLY)) {
+                reachable[first[i]] = true;
+                reachable[second[i]] = true;
+            }
+        }
+        return reachable;
+    }
+    
+    private int append(byte kind, int a, int b) {
+        if (size == kinds.length) {
+            kinds = Arrays.copyOf(kinds, size * 2);
+            first = Arrays.copyOf(first, size * 2);
+            second = Arrays.copyOf(second, size * 2);
+        }
+        kinds[size] = kind;
+        first[size] = a;
+        second[size] = b;
+        return size++;
+    }
+    
+    private void checkNode(int node) {
+        if (node < 0 || node >= size) {
+            throw new IndexOutOfBoundsException("no node " + node + " in arena of size " + size);
+        }
+    }
+}
@@ -13,7 +13,7 @@ import expressivo.parser.ExpressionParser;
  * Make a Expresion value from a parse tree.
  */
 class ExpressionMaker implements ExpressionListener {
-    private Stack<Expression> stack = new Stack<>();
+    private Stack<Object> stack = new Stack<>();
     // Invariant: stack contains the Expression value of each parse subtree that
     // has been fully-walked so far, but whose parent has not yet been exited by
     // the walk. The stack is ordered by recency of visit, so that the top of the
@@ -32,6 +32,10 @@ class ExpressionMaker implements ExpressionListener {
     // root has been exited, only the entire tree satisfies the invariant's
     // "fully walked but parent not yet exited" property, so the top of the stack
     // is the Expression of the entire parse tree.
+    //
+    // A chain of + or * is kept on the stack as a Chain rather than an Expression
+    // until it is complete, so that a chain continued inside parentheses, as in
+    // a+(b+(c+d)), becomes one flat node instead of one node per level.
     
     /**
      * Returns the expression constructed by this listener object.
@@ -40,7 +44,7 @@ class ExpressionMaker implements ExpressionListener {
      * @return Expression for the parse tree that was walked
      */
     public Expression getExpression() {
-        return stack.get(0);
+        return Chain.node(stack.get(0));
     }
 
     @Override public void exitRoot(ExpressionParser.RootContext context) {
@@ -54,11 +58,7 @@ class ExpressionMaker implements ExpressionListener {
         assert stack.size() >= products;
         assert products > 0;
 
-        Expression sum = stack.pop();
-        for (int i = 0; i < products - 1; ++i) {
-            sum = new Addition(stack.pop(), sum);
-        }
-        stack.push(sum);
+        reduce(true, products);
     }
 
     @Override public void exitProduct(ExpressionParser.ProductContext context) {  
@@ -67,24 +67,35 @@ class ExpressionMaker implements ExpressionListener {
         assert stack.size() >= primitives;
         assert primitives > 0;
 
-        Expression product = stack.pop();
-        for (int i = 0; i < primitives - 1; ++i) {
-            product = new Multiplication(stack.pop(), product);
+        reduce(false, primitives);
+    }
+
+    private void reduce(boolean isSum, int operands) {
+        if (operands == 1) {
+            // a lone operand is the whole subtree, and may still be continued
+            return;
+        }
+        Object chain = stack.pop();
+        if (!Chain.continues(chain, isSum)) {
+            chain = Chain.node(chain);
+        }
+        for (int i = 0; i < operands - 1; ++i) {
+            chain = Chain.link(isSum, Chain.node(stack.pop()), chain);
         }
-        stack.push(product);
+        stack.push(chain);
     }
 
     @Override public void exitPrimitive(ExpressionParser.PrimitiveContext context) {
         if (context.NUMBER() != null) {
             // matched the NUMBER alternative
             double n = Double.valueOf(context.NUMBER().getText());
-            Expression number = new Number(n);
+            Expression number = Expression.number(n);
             stack.push(number);
         }
         else if (context.VARIABLE() != null) {
             // matched the VARIABLE alternative
             String var = context.VARIABLE().getText();
-            Expression variable = new Variable(var);
+            Expression variable = Expression.variable(var);
             stack.push(variable);
         }
         else {
@@ -0,0 +1,72 @@
+package expressivo;
+
+import java.util.List;
+
+/**
+ * Conversion of an expression to flat form.
+ *
+ * In flat form every maximal right-nested chain of sums e0 + (e1 + (... + en))
+ * is one Sum node (or one Addition if it has two operands), and likewise for
+ * products. The traversal builds each chain as a Chain while it walks the
+ * chain's binary links, and makes the flat node once, when the chain is used
+ * as an operand of something else or is the root; so flattening takes time
+ * linear in the size of the expression, not quadratic in the chain length.
+ * The result is equal to the input, interned, and shares repeated subtrees;
+ * a chain already interned as binary nodes comes back as those nodes.
+ */
+class Flattener implements Traversal.Fold<Object> {
+
+    // Abstraction function:
+    //   AF(nodes) = a flattening in progress, in which nodes makes each chain
+    //               into its node
+    // Rep invariant:
+    //   true
+    // Safety from rep exposure:
+    //   nodes is private and never returned
+
+    private final Chain.Nodes nodes = new Chain.Nodes();
+
+    private Flattener() {
+    }
+
+    /**
+     * @param expression an expression
+     * @return an interned expression in flat form, equal to expression
+     */
+    static Expression flatten(Expression expression) {
+        final Flattener flattener = new Flattener();
+        return flattener.nodes.node(Traversal.foldShared(expression, flattener));
+    }
+
+    @Override public Object number(Number number) {
+        return Interner.intern(number);
+    }
+
+    @Override public Object variable(Variable variable) {
+        return Interner.intern(variable);
+    }
+
+    @Override public Object addition(Addition sum, Object left, Object right) {
+        return nodes.link(true, left, right);
+    }
+
+    @Override public Object multiplication(Multiplication product, Object left, Object right) {
+        return nodes.link(false, left, right);
+    }
+
+    @Override public Object sum(Sum sum, List<Object> operands) {
+        return chain(true, operands);
+    }
+
+    @Override public Object product(Product product, List<Object> operands) {
+        return chain(false, operands);
+    }
+
+    private Object chain(boolean isSum, List<Object> operands) {
+        Object result = operands.get(operands.size() - 1);
+        for (int i = operands.size() - 2; i >= 0; i--) {
+            result = nodes.link(isSum, operands.get(i), result);
+        }
+        return result;
+    }
+}
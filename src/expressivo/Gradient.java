@@ -0,0 +1,77 @@
+package expressivo;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The value of an expression at a point, together with its gradient there:
+ * the partial derivative with respect to every variable of the expression.
+ */
+public final class Gradient {
+    
+    // Abstraction function:
+    //   AF(value, partials) = an expression's value and its gradient at one
+    //     environment, where the partial derivative with respect to v is
+    //     partials.get(v) for every variable v of the expression, and 0 for
+    //     every other variable
+    // Rep invariant:
+    //   every key of partials is a nonempty string of letters
+    // Safety from rep exposure:
+    //   fields are private and final; partials is unmodifiable
+    
+    private final double value;
+    private final Map<String, Double> partials;
+    
+    /**
+     * Compute the value and gradient of a compiled expression.
+     * @param compiled expression to evaluate
+     * @param environment maps variables to values; must bind every variable of the expression
+     * @return the value and gradient of compiled at environment
+     * @throws IllegalArgumentException if a variable of the expression is unbound
+     */
+    static Gradient of(CompiledExpression compiled, Map<String, Double> environment) {
+        final double[] gradient = new double[compiled.variables().size()];
+        final double value = compiled.gradient(compiled.bind(environment), gradient);
+        final Map<String, Double> partials = new LinkedHashMap<>();
+        int slot = 0;
+        for (String variable : compiled.variables()) {
+            partials.put(variable, gradient[slot++]);
+        }
+        return new Gradient(value, partials);
+    }
+    
+    private Gradient(double value, Map<String, Double> partials) {
+        this.value = value;
+        this.partials = Collections.unmodifiableMap(partials);
+    }
+    
+    /**
+     * @return the value of the expression
+     */
+    public double value() {
+        return value;
+    }
+    
+    /**
+     * @param variable a variable name
+     * @return the partial derivative of the expression with respect to variable;
+     *         0 if variable does not occur in the expression
+     */
+    public double partial(String variable) {
+        final Double partial = partials.get(variable);
+        return partial == null ? 0 : partial;
+    }
+    
+    /**
+     * @return unmodifiable map from each variable of the expression to the
+     *         partial derivative with respect to it
+     */
+    public Map<String, Double> partials() {
+        return partials;
+    }
+    
+    @Override public String toString() {
+        return "Gradient(" + value + ", " + partials + ")";
+    }
+}
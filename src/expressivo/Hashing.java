@@ -0,0 +1,66 @@
+package expressivo;
+
+/**
+ * 64-bit structural fingerprints for Expression nodes.
+ * 
+ * A composite node's fingerprint is computed in O(1) from its variant and
+ * its operands' fingerprints, in order, so it can be computed once at
+ * construction. The mixing steps are the finalizer of SplitMix64, which
+ * spreads every input bit over the whole result.
+ */
+class Hashing {
+    
+    static final long NUMBER = 0x4e554d42L, VARIABLE = 0x56415249L,
+        ADDITION = 0x41444449L, MULTIPLICATION = 0x4d554c54L;
+    
+    private Hashing() {
+    }
+    
+    /**
+     * @param value a number
+     * @return fingerprint of a Number with that value; equal for 0.0 and -0.0
+     */
+    static long number(double value) {
+        return combine(NUMBER, Double.doubleToLongBits(value + 0.0));
+    }
+    
+    /**
+     * @param name a variable name
+     * @return fingerprint of a Variable with that name
+     */
+    static long variable(String name) {
+        long h = VARIABLE;
+        for (int i = 0; i < name.length(); i++) {
+            h = mix(h ^ name.charAt(i));
+        }
+        return combine(h, name.length());
+    }
+    
+    /**
+     * @param variant ADDITION or MULTIPLICATION
+     * @param left fingerprint of the left operand
+     * @param right fingerprint of the right operand
+     * @return fingerprint of the composite node; differs when operands are swapped
+     */
+    static long composite(long variant, long left, long right) {
+        return combine(combine(variant, left), right);
+    }
+    
+    /**
+     * @param fingerprint a 64-bit fingerprint
+     * @return a 32-bit hash code folding all of its bits
+     */
+    static int toHashCode(long fingerprint) {
+        return (int) (fingerprint ^ (fingerprint >>> 32));
+    }
+    
+    private static long combine(long seed, long value) {
+        return mix(seed * 0x9e3779b97f4a7c15L + value);
+    }
+    
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,185 @@
+package expressivo;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Hash-consing table for Expression nodes.
+ * 
+ * Structurally equal expressions built through intern() come back as the
+ * same object, so repeated subtrees are shared and comparing two interned
+ * expressions succeeds on the identity check in equals().
+ * 
+ * A chain of sums has two representations, a right-nested chain of binary
+ * Additions and a flat Sum, which are equal; likewise for products. Both
+ * are interned under one key, so a chain has one canonical node however it
+ * is built: the first one interned, in either form, while it stays reachable.
+ * 
+ * Nodes are looked up by a shallow key: the value of a Number (-0.0 taken as
+ * 0.0) or Variable, and for a sum or product its left operand and right
+ * operand viewed as a binary node, compared by identity. The hash of a sum
+ * or product is its fingerprint, so a lookup costs O(1) to hash no matter
+ * how large the subtree is. Comparing with an equal node is also O(1) when
+ * the two share their right operand, and otherwise walks the two chains,
+ * comparing their operands by identity, until they meet. The lookup finds the
+ * shared node whenever the operands are themselves interned, which holds for
+ * every tree built only through the Expression factories.
+ * 
+ * The table holds its nodes weakly, so a node is dropped once nothing else
+ * refers to it. It is safe for concurrent use by multiple threads.
+ */
+class Interner {
+    
+    // Abstraction function:
+    //   AF(table) = the set of canonical expressions ref.get() for every
+    //               ref in table.values() that has not been cleared
+    // Rep invariant:
+    //   for every entry (k, ref) in table, ref.key == k and, if ref.get() is
+    //   not null, Key.of(ref.get()) equals k
+    // Safety from rep exposure:
+    //   table and cleared are private and never returned
+    
+    private static final ConcurrentMap<Key, Ref> table = new ConcurrentHashMap<>();
+    private static final ReferenceQueue<Expression> cleared = new ReferenceQueue<>();
+    
+    private Interner() {
+    }
+    
+    /**
+     * Return the canonical node structurally equal to an expression.
+     * 
+     * @param expression expression to intern
+     * @return an expression equal to expression, of the same variant unless
+     *         expression is a sum or product whose other form was interned first;
+     *         if the operands of expression are interned, the same object is
+     *         returned for every equal expression interned while it stays reachable
+     */
+    static Expression intern(Expression expression) {
+        purge();
+        final Key key = Key.of(expression);
+        while (true) {
+            final Ref ref = table.get(key);
+            if (ref != null) {
+                final Expression canonical = ref.get();
+                if (canonical != null) {
+                    return canonical;
+                }
+                table.remove(key, ref);
+            }
+            if (table.putIfAbsent(key, new Ref(expression, key)) == null) {
+                return expression;
+            }
+        }
+    }
+    
+    /**
+     * @return number of canonical nodes currently held in the table
+     */
+    static int size() {
+        purge();
+        return table.size();
+    }
+    
+    private static void purge() {
+        Ref ref;
+        while ((ref = (Ref) cleared.poll()) != null) {
+            table.remove(ref.key, ref);
+        }
+    }
+    
+    /** Weak reference to a canonical node that remembers its table key. */
+    private static final class Ref extends WeakReference<Expression> {
+        private final Key key;
+        
+        Ref(Expression expression, Key key) {
+            super(expression, cleared);
+            this.key = key;
+        }
+    }
+    
+    /** Shallow, identity-based description of a node. */
+    private static final class Key {
+        
+        // variant is Sum.class for both forms of a sum, Product.class for both
+        // forms of a product; first and second are its left and right operands
+        // as a binary node, where a right operand that is a chain of the same
+        // operator is a view that holds the chain's operands but not its node
+        
+        private final Class<?> variant;
+        private final Expression first, second;
+        private final long bits;
+        private final int hash;
+        
+        private Key(Class<?> variant, Expression first, Expression second, long bits, int hash) {
+            this.variant = variant;
+            this.first = first;
+            this.second = second;
+            this.bits = bits;
+            this.hash = hash;
+        }
+        
+        static Key of(Expression expression) {
+            if (Traversal.isSum(expression)) {
+                return operands(Sum.class, expression);
+            } else if (Traversal.isProduct(expression)) {
+                return operands(Product.class, expression);
+            } else if (expression instanceof Number) {
+                // 0.0 and -0.0 are equal numbers, so they must share one key
+                final long bits = Double.doubleToLongBits(((Number) expression).getValue() + 0.0);
+                return new Key(Number.class, null, null, bits, Long.hashCode(bits));
+            } else if (expression instanceof Variable) {
+                final int id = ((Variable) expression).getId();
+                return new Key(Variable.class, null, null, id, Integer.hashCode(id));
+            }
+            throw new IllegalArgumentException("cannot intern " + expression.getClass());
+        }
+        
+        private static Key operands(Class<?> variant, Expression composite) {
+            final long fingerprint = composite.fingerprint();
+            return new Key(variant, Traversal.left(composite), Traversal.right(composite),
+                fingerprint, Hashing.toHashCode(fingerprint));
+        }
+        
+        /**
+         * @param a an operand whose operands, if it is a chain, are interned
+         * @param b an operand whose operands, if it is a chain, are interned
+         * @param isSum true to follow chains of sums, false for chains of products
+         * @return true iff a and b are the same object, or chains of that operator,
+         *         in either form, with the same operands by identity
+         */
+        private static boolean sameChain(Expression a, Expression b, boolean isSum) {
+            while (a != b) {
+                if (a.fingerprint() != b.fingerprint()) {
+                    return false;
+                }
+                final boolean chains = isSum
+                    ? Traversal.isSum(a) && Traversal.isSum(b)
+                    : Traversal.isProduct(a) && Traversal.isProduct(b);
+                if (!chains || Traversal.left(a) != Traversal.left(b)) {
+                    return false;
+                }
+                a = Traversal.right(a);
+                b = Traversal.right(b);
+            }
+            return true;
+        }
+        
+        @Override public boolean equals(Object thatObject) {
+            if (!(thatObject instanceof Key)) {
+                return false;
+            }
+            final Key that = (Key) thatObject;
+            if (variant != that.variant || bits != that.bits) {
+                return false;
+            }
+            return first == that.first
+                && (second == that.second || sameChain(second, that.second, variant == Sum.class));
+        }
+        
+        @Override public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -4,12 +4,27 @@
 package expressivo;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -24,12 +39,34 @@ public class Main {
     /**
      * Read expression and command inputs from the console and output results.
      * An empty input terminates the program.
-     * @param args unused
+     * 
+     * <p>With arguments "--batch [file]", instead read all expressions and commands
+     * from file (or standard input if file is omitted or "-") and write the results
+     * to standard output, see runBatch().
+     * 
+     * <p>With arguments "--server [port [sessions]]", instead serve the same commands to
+     * clients on localhost, at most sessions of them at once, until the process is killed,
+     * see Server.
+     * @param args empty for the interactive console, "--batch" and an optional file name,
+     *        or "--server", an optional port number and an optional limit on sessions
      * @throws IOException if there is an error reading the input
      */
     public static void main(String[] args) throws IOException {
+        if (args.length > 0 && args[0].equals(BATCH_OPTION)) {
+            runBatch(args.length > 1 ? args[1] : "-");
+            return;
+        }
+        if (args.length > 0 && args[0].equals(SERVER_OPTION)) {
+            try (Server server = new Server(args.length > 1 ? Integer.parseInt(args[1]) : SERVER_PORT,
+                    args.length > 2 ? Integer.parseInt(args[2]) : Server.MAX_SESSIONS)) {
+                System.err.println("listening on localhost:" + server.port());
+                server.serve();
+            }
+            return;
+        }
+        
         final BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
-        Optional<String> currentExpression = Optional.empty();
+        final Session session = new Session();
         
         while (true) {
             System.out.print("> ");
@@ -39,29 +76,149 @@ public class Main {
                 return; // exits the program
             }
             
+            System.out.println(session.execute(input));
+        }
+    }
+    
+    private static final String BATCH_OPTION = "--batch";
+    private static final int BATCH_WINDOW = 4096;
+    private static final String SERVER_OPTION = "--server";
+    private static final int SERVER_PORT = 6005;
+    
+    /**
+     * Process a file of expressions and commands, writing one output line per
+     * nonempty input line, in input order, to standard output; see runBatch(BufferedReader, Writer).
+     * 
+     * @param file name of the input file, or "-" for standard input
+     * @throws IOException if there is an error reading the input or writing the output
+     */
+    static void runBatch(String file) throws IOException {
+        final BufferedReader in = file.equals("-")
+            ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+            : Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8);
+        runBatch(in, new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16));
+    }
+    
+    /**
+     * Process expressions and commands, writing one output line per nonempty input
+     * line, in input order.
+     * 
+     * <p>An expression line and the commands that follow it, up to the next expression
+     * line, form an independent group, run in a fresh Session; groups are processed in
+     * parallel on a pool with one thread per processor. Each output line is what the
+     * console prints for its input line when that group is entered into a new console,
+     * so an expression line that fails to parse still starts a new group, and the
+     * commands after it report that there is no current expression, even where the
+     * console would have kept the expression before it. An Error thrown for one line,
+     * such as a StackOverflowError on very deeply nested input, is reported on that
+     * line's output, in the same form as other errors, and the rest of the input is
+     * still processed. At most BATCH_WINDOW groups are in flight, so memory use does
+     * not grow with the input size. Output goes through out, which is flushed at the end.
+     * 
+     * @param in input, closed when done
+     * @param out output
+     * @throws IOException if there is an error reading the input or writing the output
+     */
+    static void runBatch(BufferedReader in, Writer out) throws IOException {
+        final ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        final Deque<Future<String>> pending = new ArrayDeque<>();
+        try {
+            List<String> group = new ArrayList<>();
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                if (!group.isEmpty() && !isCommand(line)) {
+                    submit(pool, group, pending, out);
+                    group = new ArrayList<>();
+                }
+                group.add(line);
+            }
+            if (!group.isEmpty()) {
+                submit(pool, group, pending, out);
+            }
+            while (!pending.isEmpty()) {
+                out.write(await(pending.removeFirst()));
+            }
+            out.flush();
+        } finally {
+            pool.shutdownNow();
+            in.close();
+        }
+    }
+    
+    private static void submit(ExecutorService pool, final List<String> group,
+            Deque<Future<String>> pending, Writer out) throws IOException {
+        pending.addLast(pool.submit(() -> {
+            final Session session = new Session();
+            final StringBuilder output = new StringBuilder();
+            for (String input : group) {
+                output.append(session.execute(input)).append('\n');
+            }
+            return output.toString();
+        }));
+        if (pending.size() > BATCH_WINDOW) {
+            out.write(await(pending.removeFirst()));
+        }
+    }
+    
+    private static String await(Future<String> result) throws IOException {
+        try {
+            return result.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for batch results");
+        } catch (ExecutionException ee) {
+            throw new IOException("batch processing failed", ee.getCause());
+        }
+    }
+    
+    private static boolean isCommand(String input) {
+        return input.startsWith(DIFFERENTIATE_PREFIX) || input.startsWith(SIMPLIFY_PREFIX);
+    }
+    
+    /**
+     * The state of one console session: the current expression, which commands act on.
+     * The current expression is kept as an AST and commands go through the Expression
+     * overloads of Commands, so only expression lines are parsed: commands never
+     * re-parse the text they printed, nor the current expression.
+     */
+    static class Session {
+        private Optional<Expression> currentExpression = Optional.empty();
+        
+        /**
+         * Execute one line of input, an expression or a command.
+         * If it fails, even with an Error such as a StackOverflowError on very deeply
+         * nested input, the current expression is unchanged.
+         * @param input a nonempty line of input
+         * @return the output for input, or a description of the error
+         */
+        String execute(String input) {
             try {
                 final String output;
                 
                 if (input.startsWith(DIFFERENTIATE_PREFIX)) {
                     final String variable = parseDifferentiate(input);
-                    output = Commands.differentiate(currentExpression.get(), variable);
-                    currentExpression = Optional.of(output);
+                    final Expression derivative = Commands.differentiate(currentExpression.get(), variable);
+                    output = derivative.toString();
+                    currentExpression = Optional.of(derivative);
                 } else if (input.startsWith(SIMPLIFY_PREFIX)) {
                     final Map<String,Double> environment = parseSimpify(input);
-                    output = Commands.simplify(currentExpression.get(), environment);
+                    output = Commands.simplify(currentExpression.get(), environment).toString();
                     // ... but don't change currentExpression
                 } else {
                     final Expression expression = Expression.parse(input);
                     output = expression.toString();
-                    currentExpression = Optional.of(output);
+                    currentExpression = Optional.of(expression);
                 }
                 
-                System.out.println(output);
+                return output;
             } catch (NoSuchElementException nse) {
                 // currentExpression was empty
-                System.out.println("must enter an expression before using this command");
-            } catch (RuntimeException re) {
-                System.out.println(re.getClass().getName() + ": " + re.getMessage());
+                return "must enter an expression before using this command";
+            } catch (RuntimeException | Error e) {
+                return e.getClass().getName() + ": " + e.getMessage();
             }
         }
     }
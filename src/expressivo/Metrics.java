@@ -0,0 +1,354 @@
+package expressivo;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runtime instrumentation of the expression system's main operations.
+ * 
+ * When enabled, every instrumented call records its latency in a histogram
+ * with power-of-two buckets, together with the size of its input and output
+ * and the depth of the expression involved, and reports the same data to any
+ * registered listeners. When disabled, which is the default, an instrumented
+ * call costs one volatile read.
+ * 
+ * Sizes in nodes count the expression as a tree of binary nodes, so a shared
+ * subtree counts once for each place it occurs and an n-ary sum or product
+ * counts as its chain of binary nodes. Every node keeps its size and depth,
+ * computed from its operands' when it is made, so measuring an expression
+ * costs no traversal.
+ * 
+ * Recorded calls can also be sent to Java Flight Recorder, as events named
+ * expressivo.Operation, with enableFlightRecorder(); a recording must enable
+ * that event for them to be kept.
+ * 
+ * Metrics start enabled if the system property expressivo.metrics is "true",
+ * and start enabled with flight recorder events if expressivo.metrics.jfr is "true".
+ */
+public final class Metrics {
+    
+    /** Instrumented operations, with the units of their input and output sizes. */
+    public enum Operation {
+        /** Expression.parse: input in characters, output in nodes */
+        PARSE,
+        /** Expression.differentiate: input and output in nodes */
+        DIFFERENTIATE,
+        /** Expression.toString: input in nodes, output in characters */
+        TO_STRING,
+        /** Commands.differentiate: input and output in nodes */
+        COMMANDS_DIFFERENTIATE,
+        /** Commands.simplify: input and output in nodes */
+        COMMANDS_SIMPLIFY
+    }
+    
+    /** Receives every recorded call, e.g. to forward it to an event-based profiler. */
+    public interface Listener {
+        
+        /**
+         * Called after an instrumented call completes, on the calling thread.
+         * @param operation the operation
+         * @param nanos latency of the call in nanoseconds
+         * @param inputSize size of the input, in the units of operation
+         * @param outputSize size of the output, in the units of operation
+         * @param depth depth of the expression involved, or 0 if not measured
+         */
+        void recorded(Operation operation, long nanos, long inputSize, long outputSize, int depth);
+    }
+    
+    /** An immutable copy of the statistics recorded for one operation. */
+    public static final class Snapshot {
+        private final long count, totalNanos, inputSize, outputSize, maxDepth;
+        private final long[] buckets;
+        
+        private Snapshot(Stats stats) {
+            this.count = stats.count.sum();
+            this.totalNanos = stats.totalNanos.sum();
+            this.inputSize = stats.inputSize.sum();
+            this.outputSize = stats.outputSize.sum();
+            this.maxDepth = stats.maxDepth.get();
+            this.buckets = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = stats.buckets.get(i);
+            }
+        }
+        
+        /** @return number of recorded calls */
+        public long count() {
+            return count;
+        }
+        
+        /** @return total latency of the recorded calls, in nanoseconds */
+        public long totalNanos() {
+            return totalNanos;
+        }
+        
+        /** @return sum of the input sizes of the recorded calls */
+        public long inputSize() {
+            return inputSize;
+        }
+        
+        /** @return sum of the output sizes of the recorded calls */
+        public long outputSize() {
+            return outputSize;
+        }
+        
+        /** @return largest expression depth among the recorded calls */
+        public long maxDepth() {
+            return maxDepth;
+        }
+        
+        /**
+         * @param i bucket index, 0 <= i < 64
+         * @return number of calls whose latency in nanoseconds was in [2^(i-1), 2^i),
+         *         or 0 nanoseconds for i = 0
+         */
+        public long bucket(int i) {
+            return buckets[i];
+        }
+        
+        /**
+         * @param fraction in [0, 1]
+         * @return an upper bound, within a factor of two, on the latency in nanoseconds
+         *         of that fraction of the recorded calls; 0 if there were none
+         */
+        public long percentile(double fraction) {
+            final long target = (long) Math.ceil(fraction * count);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets[i];
+                if (seen >= target && seen > 0) {
+                    return i == 0 ? 0 : (1L << i) - 1;
+                }
+            }
+            return 0;
+        }
+        
+        @Override public String toString() {
+            return "count=" + count + " total=" + totalNanos + "ns p50<=" + percentile(0.5)
+                + "ns p99<=" + percentile(0.99) + "ns input=" + inputSize + " output=" + outputSize
+                + " maxDepth=" + maxDepth;
+        }
+    }
+    
+    private static final int BUCKETS = 64;
+    
+    /** Live statistics for one operation, updated concurrently. */
+    private static final class Stats {
+        final LongAdder count = new LongAdder();
+        final LongAdder totalNanos = new LongAdder();
+        final LongAdder inputSize = new LongAdder();
+        final LongAdder outputSize = new LongAdder();
+        final LongAccumulator maxDepth = new LongAccumulator(Math::max, 0);
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        
+        void reset() {
+            count.reset();
+            totalNanos.reset();
+            inputSize.reset();
+            outputSize.reset();
+            maxDepth.reset();
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets.set(i, 0);
+            }
+        }
+    }
+    
+    private static final boolean FLIGHT_RECORDER = Boolean.getBoolean("expressivo.metrics.jfr");
+    private static volatile boolean enabled = Boolean.getBoolean("expressivo.metrics") || FLIGHT_RECORDER;
+    private static final Map<Operation, Stats> stats = new EnumMap<>(Operation.class);
+    private static final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+    static {
+        for (Operation operation : Operation.values()) {
+            stats.put(operation, new Stats());
+        }
+        if (FLIGHT_RECORDER) {
+            enableFlightRecorder();
+        }
+    }
+    
+    private Metrics() {
+    }
+    
+    /** Start recording instrumented calls. */
+    public static void enable() {
+        enabled = true;
+    }
+    
+    /** Stop recording instrumented calls; statistics recorded so far are kept. */
+    public static void disable() {
+        enabled = false;
+    }
+    
+    /** @return true iff instrumented calls are being recorded */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+    
+    /**
+     * @param operation an operation
+     * @return the statistics recorded for operation so far
+     */
+    public static Snapshot snapshot(Operation operation) {
+        return new Snapshot(stats.get(operation));
+    }
+    
+    /** Discard all recorded statistics. */
+    public static void reset() {
+        for (Stats current : stats.values()) {
+            current.reset();
+        }
+    }
+    
+    /** @param listener listener to notify of every recorded call */
+    public static void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+    
+    /** @param listener listener to stop notifying */
+    public static void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+    
+    /**
+     * Send every recorded call to Java Flight Recorder as an expressivo.Operation
+     * event, while metrics are enabled. Requires a JVM with the jdk.jfr module,
+     * such as Java 8u262 or later.
+     */
+    public static void enableFlightRecorder() {
+        listeners.addIfAbsent(MetricsEvent.LISTENER);
+    }
+    
+    /** Stop sending recorded calls to Java Flight Recorder. */
+    public static void disableFlightRecorder() {
+        listeners.remove(MetricsEvent.LISTENER);
+    }
+    
+    /**
+     * Begin timing an instrumented call.
+     * @return a start timestamp to pass to record(), or 0 if metrics are disabled
+     */
+    static long start() {
+        return enabled ? Math.max(System.nanoTime(), 1) : 0;
+    }
+    
+    /**
+     * Finish timing an instrumented call begun with start().
+     * @param start result of start()
+     * @return nanoseconds since start, or -1 if start was 0 because metrics were disabled
+     */
+    static long elapsed(long start) {
+        return start == 0 ? -1 : Math.max(System.nanoTime() - start, 0);
+    }
+    
+    /**
+     * Record a completed instrumented call.
+     * @param operation the operation
+     * @param nanos latency of the call, as returned by elapsed(), nonnegative
+     * @param inputSize size of the input, in the units of operation
+     * @param outputSize size of the output, in the units of operation
+     * @param depth depth of the expression involved, or 0 if not measured
+     */
+    static void record(Operation operation, long nanos, long inputSize, long outputSize, int depth) {
+        final Stats current = stats.get(operation);
+        current.count.increment();
+        current.totalNanos.add(nanos);
+        current.inputSize.add(inputSize);
+        current.outputSize.add(outputSize);
+        current.maxDepth.accumulate(depth);
+        current.buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(nanos));
+        for (Listener listener : listeners) {
+            listener.recorded(operation, nanos, inputSize, outputSize, depth);
+        }
+    }
+    
+    /**
+     * @param expression an expression
+     * @return number of nodes in expression as a tree of binary nodes, counting a
+     *         subtree once for each place it occurs, or Long.MAX_VALUE if that is
+     *         larger; constant time
+     */
+    static long size(Expression expression) {
+        if (expression instanceof Addition) {
+            return ((Addition) expression).treeSize();
+        } else if (expression instanceof Multiplication) {
+            return ((Multiplication) expression).treeSize();
+        } else if (expression instanceof Sum) {
+            return ((Sum) expression).treeSize();
+        } else if (expression instanceof Product) {
+            return ((Product) expression).treeSize();
+        }
+        return 1;
+    }
+    
+    /**
+     * @param expression an expression
+     * @return number of nodes on the longest path from expression to a leaf, with
+     *         n-ary sums and products counted as their chains of binary nodes;
+     *         constant time
+     */
+    static int depth(Expression expression) {
+        if (expression instanceof Addition) {
+            return ((Addition) expression).depth();
+        } else if (expression instanceof Multiplication) {
+            return ((Multiplication) expression).depth();
+        } else if (expression instanceof Sum) {
+            return ((Sum) expression).depth();
+        } else if (expression instanceof Product) {
+            return ((Product) expression).depth();
+        }
+        return 1;
+    }
+    
+    /**
+     * @param left size() of a left operand
+     * @param right size() of a right operand
+     * @return size() of a binary node over the operands, saturating at Long.MAX_VALUE
+     */
+    static long compositeSize(long left, long right) {
+        final long size = 1 + left + right;
+        return size < 0 ? Long.MAX_VALUE : size;
+    }
+    
+    /**
+     * Count the distinct nodes of an expression by traversing it; unlike size(),
+     * this takes time linear in the number of distinct nodes, so it is not used
+     * on instrumented paths.
+     * @param expression an expression
+     * @return number of distinct nodes in expression
+     */
+    static long nodes(Expression expression) {
+        final long[] count = { 0 };
+        Traversal.foldShared(expression, new Traversal.Fold<Void>() {
+            @Override public Void number(Number number) {
+                count[0]++;
+                return null;
+            }
+            @Override public Void variable(Variable variable) {
+                count[0]++;
+                return null;
+            }
+            @Override public Void addition(Addition sum, Void left, Void right) {
+                count[0]++;
+                return null;
+            }
+            @Override public Void multiplication(Multiplication product, Void left, Void right) {
+                count[0]++;
+                return null;
+            }
+            @Override public Void sum(Sum sum, List<Void> operands) {
+                count[0]++;
+                return null;
+            }
+            @Override public Void product(Product product, List<Void> operands) {
+                count[0]++;
+                return null;
+            }
+        });
+        return count[0];
+    }
+}
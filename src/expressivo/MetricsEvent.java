@@ -0,0 +1,71 @@
+package expressivo;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * A Java Flight Recorder event for one instrumented call recorded by Metrics,
+ * named expressivo.Operation. Metrics.enableFlightRecorder() registers LISTENER,
+ * which commits one of these for every recorded call while a recording has the
+ * event enabled.
+ * 
+ * This class is loaded only when flight recorder events are turned on, so the
+ * rest of the system runs on JVMs without jdk.jfr.
+ */
+@Name(MetricsEvent.NAME)
+@Label("Expressivo Operation")
+@Category("Expressivo")
+@Description("An instrumented call of the expression system")
+@StackTrace(false)
+final class MetricsEvent extends Event {
+    
+    // Abstraction function:
+    //   AF(operation, latency, inputSize, outputSize, depth) = a call of the
+    //     operation named operation that took latency nanoseconds, with input and
+    //     output of those sizes in the units of Metrics.Operation, and expression depth
+    // Rep invariant:
+    //   operation is the name of a Metrics.Operation; latency, sizes and depth >= 0
+    // Safety from rep exposure:
+    //   fields are only set by LISTENER before the event is committed;
+    //   the fields must not be final or private for the flight recorder to read them
+    // Thread safety argument:
+    //   each event is made, filled and committed on one thread and never shared
+    
+    /** Name of this event type in recordings. */
+    static final String NAME = "expressivo.Operation";
+    
+    /** Commits an event for each recorded call, if a recording has this event enabled. */
+    static final Metrics.Listener LISTENER = (operation, nanos, inputSize, outputSize, depth) -> {
+        final MetricsEvent event = new MetricsEvent();
+        if (!event.isEnabled()) {
+            return;
+        }
+        event.operation = operation.name();
+        event.latency = nanos;
+        event.inputSize = inputSize;
+        event.outputSize = outputSize;
+        event.depth = depth;
+        event.commit();
+    };
+    
+    @Label("Operation")
+    String operation;
+    
+    @Label("Latency")
+    @Timespan(Timespan.NANOSECONDS)
+    long latency;
+    
+    @Label("Input Size")
+    long inputSize;
+    
+    @Label("Output Size")
+    long outputSize;
+    
+    @Label("Depth")
+    int depth;
+}
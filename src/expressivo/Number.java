@@ -1,12 +1,16 @@
 package expressivo;
 
+import java.math.BigDecimal;
+
 public class Number implements Expression {
     private final double value;
+    private final long fingerprint;
     
     // Abstraction function:
     //   represents the value of this number
     // Rep invariant:
     //   value >= 0
+    //   fingerprint == Hashing.number(value)
     // Safety from rep exposure:
     //   value is final and immutable
     
@@ -17,6 +21,7 @@ public class Number implements Expression {
      */
     public Number(double value) {
         this.value = value;
+        this.fingerprint = Hashing.number(value);
         checkRep();
     }
     
@@ -30,6 +35,15 @@ public class Number implements Expression {
         return value;
     }
 
+    /**
+     * @param expression an expression
+     * @param value a number
+     * @return true iff expression is a Number with the given value
+     */
+    static boolean is(Expression expression, double value) {
+        return expression instanceof Number && ((Number) expression).value == value;
+    }
+
     /**
      * Checks the rep invariant.
      */
@@ -39,7 +53,20 @@ public class Number implements Expression {
     
     @Override 
     public String toString() {
-        return String.valueOf(value);
+        return format(value);
+    }
+    
+    /**
+     * @param value a nonnegative number
+     * @return value in plain decimal, with the digits of String.valueOf(value) but
+     *         never in E-notation, which the parsers do not accept; e.g. "2.0",
+     *         "120000000000000" for 1.2E14, "0.00010" for 1.0E-4
+     */
+    static String format(double value) {
+        if (Double.isInfinite(value)) {
+            return String.valueOf(value);
+        }
+        return BigDecimal.valueOf(value).toPlainString();
     }
 
     @Override 
@@ -51,7 +78,12 @@ public class Number implements Expression {
 
     @Override 
     public int hashCode() {
-        return Double.hashCode(value);
+        return Hashing.toHashCode(fingerprint);
+    }
+    
+    @Override 
+    public long fingerprint() {
+        return fingerprint;
     }
     
     
@@ -59,6 +91,6 @@ public class Number implements Expression {
 		return true;
     }
     @Override public Expression differentiate(String variable) {
-        return new Number(0);
+        return Expression.number(0);
     }
 }
\ No newline at end of file
@@ -0,0 +1,21 @@
+package expressivo;
+
+/**
+ * Parser implementations selectable in Expression.parse(String, ParseMode).
+ * Every mode accepts the same language and produces equal ASTs.
+ */
+public enum ParseMode {
+    
+    /** ANTLR lexer and parser, walked into an AST by ExpressionMaker. */
+    ANTLR,
+    
+    /**
+     * ANTLR lexer and parser, predicting with SLL first and falling back to full LL
+     * only when SLL fails; a syntax error stops the parse at once, without recovery.
+     */
+    ANTLR_SLL,
+    
+    /** Hand-written single-pass parser that builds the AST straight from characters. */
+    DIRECT
+    
+}
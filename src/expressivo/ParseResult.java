@@ -0,0 +1,84 @@
+package expressivo;
+
+import java.util.Optional;
+
+/**
+ * The outcome of parsing one input of a bulk parse: either an expression,
+ * or the error that made the input invalid.
+ */
+public final class ParseResult {
+
+    // Abstraction function:
+    //   AF(input, expression, error) = the result of parsing input, which is
+    //     expression if it is present, and otherwise failed with error
+    // Rep invariant:
+    //   exactly one of expression and error is non-null
+    // Safety from rep exposure:
+    //   all fields are private and final; input and expression are immutable,
+    //   and error is an exception that nothing modifies after it is thrown
+
+    private final String input;
+    private final Expression expression;
+    private final IllegalArgumentException error;
+
+    private ParseResult(String input, Expression expression, IllegalArgumentException error) {
+        this.input = input;
+        this.expression = expression;
+        this.error = error;
+        checkRep();
+    }
+
+    private void checkRep() {
+        assert (expression == null) != (error == null);
+    }
+
+    /**
+     * @param input text that was parsed
+     * @param expression the expression parsed from input
+     * @return a successful result
+     */
+    static ParseResult valid(String input, Expression expression) {
+        return new ParseResult(input, expression, null);
+    }
+
+    /**
+     * @param input text that was parsed
+     * @param error why input is not a valid expression
+     * @return a failed result
+     */
+    static ParseResult invalid(String input, IllegalArgumentException error) {
+        return new ParseResult(input, null, error);
+    }
+
+    /**
+     * @return the text that was parsed
+     */
+    public String input() {
+        return input;
+    }
+
+    /**
+     * @return true iff the input was a valid expression
+     */
+    public boolean isValid() {
+        return expression != null;
+    }
+
+    /**
+     * @return the expression parsed from the input, if it was valid
+     */
+    public Optional<Expression> expression() {
+        return Optional.ofNullable(expression);
+    }
+
+    /**
+     * @return the error that the input's parse threw, if it was invalid
+     */
+    public Optional<IllegalArgumentException> error() {
+        return Optional.ofNullable(error);
+    }
+
+    @Override public String toString() {
+        return isValid() ? expression.toString() : "invalid: " + error.getMessage();
+    }
+}
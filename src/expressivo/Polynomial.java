@@ -0,0 +1,601 @@
+package expressivo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeSet;
+
+/**
+ * An immutable sparse polynomial with nonnegative coefficients, in normal form.
+ * 
+ * A polynomial is a sum of monomials. Each monomial is stored sparsely, as
+ * the (variable, exponent) pairs of just the variables it contains, over the
+ * polynomial's sorted variables, with one double coefficient; so a polynomial
+ * takes space proportional to the total size of its terms, however many
+ * variables it has. Like terms are always collected, so two polynomials are
+ * equal exactly when they denote the same function.
+ */
+public final class Polynomial {
+    
+    // Abstraction function:
+    //   AF(variables, starts, factors, powers, coefficients) =
+    //     sum over terms t in [0..coefficients.length) of
+    //       coefficients[t] * product over k in [starts[t]..starts[t+1]) of
+    //         variables[factors[k]] ^ powers[k]
+    // Rep invariant:
+    //   variables is sorted, has no duplicates, and every variable occurs in
+    //     at least one term
+    //   starts.length == coefficients.length + 1, starts[0] == 0,
+    //     starts is nondecreasing, and factors.length == powers.length == starts[terms]
+    //   within each term, factors are strictly increasing indices into
+    //     variables, and every power is > 0
+    //   every coefficient is > 0, and no two terms have the same monomial
+    //   terms are sorted by decreasing total degree, then by decreasing
+    //     exponent vector over variables in lexicographic order
+    // Safety from rep exposure:
+    //   all fields are private and final; arrays are never shared with clients
+    
+    private final String[] variables;
+    private final int[] starts;
+    private final int[] factors;
+    private final int[] powers;
+    private final double[] coefficients;
+    
+    private static final String[] NO_VARIABLES = new String[0];
+    private static final int[] NO_FACTORS = new int[0];
+    
+    /** The zero polynomial. */
+    public static final Polynomial ZERO = constant(0);
+    
+    /**
+     * Largest expansion, in terms, that Commands produces; past it the commands
+     * return the unexpanded folded expression, which stays linear in the input.
+     */
+    static final int EXPANSION_LIMIT = 4096;
+    
+    private Polynomial(String[] variables, int[] starts, int[] factors, int[] powers, double[] coefficients) {
+        this.variables = variables;
+        this.starts = starts;
+        this.factors = factors;
+        this.powers = powers;
+        this.coefficients = coefficients;
+        checkRep();
+    }
+    
+    private void checkRep() {
+        assert starts.length == coefficients.length + 1 && starts[0] == 0;
+        assert factors.length == starts[coefficients.length] && powers.length == factors.length;
+        for (int t = 0; t < coefficients.length; t++) {
+            assert coefficients[t] > 0;
+            for (int k = starts[t]; k < starts[t + 1]; k++) {
+                assert powers[k] > 0;
+                assert k == starts[t] || factors[k - 1] < factors[k];
+            }
+        }
+        for (int i = 1; i < variables.length; i++) {
+            assert variables[i - 1].compareTo(variables[i]) < 0;
+        }
+    }
+    
+    /**
+     * @param value nonnegative value
+     * @return the constant polynomial value
+     */
+    public static Polynomial constant(double value) {
+        assert value >= 0;
+        return value == 0
+            ? new Polynomial(NO_VARIABLES, new int[] { 0 }, NO_FACTORS, NO_FACTORS, new double[0])
+            : new Polynomial(NO_VARIABLES, new int[] { 0, 0 }, NO_FACTORS, NO_FACTORS, new double[] { value });
+    }
+    
+    /**
+     * @param variable a nonempty string of letters
+     * @return the polynomial consisting of just variable
+     */
+    public static Polynomial variable(String variable) {
+        return new Polynomial(new String[] { variable }, new int[] { 0, 1 }, new int[] { 0 }, new int[] { 1 },
+            new double[] { 1 });
+    }
+    
+    /**
+     * Expand an expression into normal form.
+     * Takes time proportional to the size of the expansion, which can be much
+     * larger than the expression when it multiplies sums together; see
+     * of(Expression, int) to give up on such expressions early.
+     * @param expression an expression
+     * @return the polynomial equal to expression
+     */
+    public static Polynomial of(Expression expression) {
+        return of(expression, Integer.MAX_VALUE).get();
+    }
+    
+    /**
+     * Expand an expression into normal form, unless the expansion grows too large.
+     * Gives up as soon as an intermediate result would have more than maxTerms
+     * terms, so the work done is bounded in maxTerms and the size of expression.
+     * @param expression an expression
+     * @param maxTerms largest number of terms that the result, or any intermediate
+     *        result for a subexpression, may have; must be positive
+     * @return the polynomial equal to expression, or empty if the expansion of
+     *         expression or of one of its subexpressions has more than maxTerms terms
+     */
+    public static Optional<Polynomial> of(Expression expression, int maxTerms) {
+        // first pass: collect the variables, and count the parents of each
+        // distinct node, so that terms of a node with a single parent can be
+        // accumulated in place instead of copied
+        final TreeSet<String> names = new TreeSet<>();
+        final Map<Expression, Integer> parents = new IdentityHashMap<>();
+        Traversal.foldShared(expression, new Traversal.Fold<Void>() {
+            @Override public Void number(Number number) {
+                return null;
+            }
+            @Override public Void variable(Variable variable) {
+                names.add(variable.getName());
+                return null;
+            }
+            @Override public Void addition(Addition sum, Void left, Void right) {
+                count(sum.left());
+                count(sum.right());
+                return null;
+            }
+            @Override public Void multiplication(Multiplication product, Void left, Void right) {
+                count(product.left());
+                count(product.right());
+                return null;
+            }
+            @Override public Void sum(Sum sum, List<Void> operands) {
+                for (int i = 0; i < operands.size(); i++) {
+                    count(sum.operand(i));
+                }
+                return null;
+            }
+            @Override public Void product(Product product, List<Void> operands) {
+                for (int i = 0; i < operands.size(); i++) {
+                    count(product.operand(i));
+                }
+                return null;
+            }
+            private void count(Expression operand) {
+                final Integer count = parents.get(operand);
+                parents.put(operand, count == null ? 1 : count + 1);
+            }
+        });
+        final String[] variables = names.toArray(NO_VARIABLES);
+        final Map<String, Integer> index = new HashMap<>();
+        for (int i = 0; i < variables.length; i++) {
+            index.put(variables[i], i);
+        }
+        // intermediate results all index the full variable list; the final
+        // result drops the variables that cancelled out
+        final Builder result;
+        try {
+            result = Traversal.foldShared(expression, new Traversal.Fold<Builder>() {
+                @Override public Builder number(Number number) {
+                    final Builder constant = new Builder(maxTerms);
+                    constant.add(NO_FACTORS, NO_FACTORS, number.getValue());
+                    return constant;
+                }
+                @Override public Builder variable(Variable variable) {
+                    final Builder single = new Builder(maxTerms);
+                    single.add(new int[] { index.get(variable.getName()) }, new int[] { 1 }, 1);
+                    return single;
+                }
+                @Override public Builder addition(Addition sum, Builder left, Builder right) {
+                    if (sum.left() != sum.right()) {
+                        if (parents.get(sum.right()) == 1) {
+                            return right.addAll(left);
+                        } else if (parents.get(sum.left()) == 1) {
+                            return left.addAll(right);
+                        }
+                    }
+                    return Builder.sum(left, right);
+                }
+                @Override public Builder multiplication(Multiplication product, Builder left, Builder right) {
+                    return Builder.product(left, right);
+                }
+                @Override public Builder sum(Sum sum, List<Builder> operands) {
+                    // accumulate in place into an operand with no other parent, if any
+                    int owner = -1;
+                    for (int i = 0; i < operands.size() && owner < 0; i++) {
+                        if (parents.get(sum.operand(i)) == 1) {
+                            owner = i;
+                        }
+                    }
+                    final Builder total = owner >= 0 ? operands.get(owner) : Builder.sum(operands.get(0), operands.get(1));
+                    for (int i = owner >= 0 ? 0 : 2; i < operands.size(); i++) {
+                        if (i != owner) {
+                            total.addAll(operands.get(i));
+                        }
+                    }
+                    return total;
+                }
+                @Override public Builder product(Product product, List<Builder> operands) {
+                    Builder total = operands.get(operands.size() - 1);
+                    for (int i = operands.size() - 2; i >= 0; i--) {
+                        total = Builder.product(operands.get(i), total);
+                    }
+                    return total;
+                }
+            });
+        } catch (OverBudget overBudget) {
+            return Optional.empty();
+        }
+        return Optional.of(result.build(variables));
+    }
+    
+    /**
+     * @return the variables that occur in this polynomial, in sorted order
+     */
+    public List<String> variables() {
+        return Collections.unmodifiableList(Arrays.asList(variables.clone()));
+    }
+    
+    /**
+     * @return the number of terms of this polynomial after collecting like terms
+     */
+    public int terms() {
+        return coefficients.length;
+    }
+    
+    /**
+     * @param that a polynomial
+     * @return the polynomial this + that
+     */
+    public Polynomial add(Polynomial that) {
+        final String[] union = union(this.variables, that.variables);
+        return Builder.sum(this.over(union), that.over(union)).build(union);
+    }
+    
+    /**
+     * @param that a polynomial
+     * @return the polynomial this * that
+     */
+    public Polynomial multiply(Polynomial that) {
+        final String[] union = union(this.variables, that.variables);
+        return Builder.product(this.over(union), that.over(union)).build(union);
+    }
+    
+    /**
+     * @param variable the variable to differentiate by, a case-sensitive nonempty string of letters.
+     * @return the derivative of this polynomial with respect to variable
+     */
+    public Polynomial differentiate(String variable) {
+        final int i = Arrays.binarySearch(variables, variable);
+        if (i < 0) {
+            return ZERO;
+        }
+        final Builder result = new Builder(Integer.MAX_VALUE);
+        for (int t = 0; t < coefficients.length; t++) {
+            final int k = Arrays.binarySearch(factors, starts[t], starts[t + 1], i);
+            if (k >= 0) {
+                final int power = powers[k];
+                final int[] termFactors = Arrays.copyOfRange(factors, starts[t], starts[t + 1]);
+                final int[] termPowers = Arrays.copyOfRange(powers, starts[t], starts[t + 1]);
+                termPowers[k - starts[t]]--;
+                result.add(termFactors, termPowers, coefficients[t] * power);
+            }
+        }
+        return result.build(variables);
+    }
+    
+    /**
+     * @param environment maps variables to nonnegative values
+     * @return this polynomial with every variable bound in environment replaced by its value
+     */
+    public Polynomial substitute(Map<String, Double> environment) {
+        final Builder result = new Builder(Integer.MAX_VALUE);
+        for (int t = 0; t < coefficients.length; t++) {
+            final int[] termFactors = Arrays.copyOfRange(factors, starts[t], starts[t + 1]);
+            final int[] termPowers = Arrays.copyOfRange(powers, starts[t], starts[t + 1]);
+            double coefficient = coefficients[t];
+            for (int k = 0; k < termFactors.length; k++) {
+                final Double value = environment.get(variables[termFactors[k]]);
+                if (value != null) {
+                    coefficient *= Math.pow(value, termPowers[k]);
+                    termPowers[k] = 0;
+                }
+            }
+            result.add(termFactors, termPowers, coefficient);
+        }
+        return result.build(variables);
+    }
+    
+    /**
+     * Convert to an expression. Terms appear in the normal-form order, each
+     * written as its coefficient (omitted when it is 1) times its variables,
+     * a variable with exponent k repeated k times.
+     * @return an expression equal to this polynomial as a function
+     */
+    public Expression toExpression() {
+        Expression sum = null;
+        for (int t = coefficients.length - 1; t >= 0; t--) {
+            final List<Expression> product = new ArrayList<>();
+            if (coefficients[t] != 1) {
+                product.add(Expression.number(coefficients[t]));
+            }
+            for (int k = starts[t]; k < starts[t + 1]; k++) {
+                final Expression variable = Expression.variable(variables[factors[k]]);
+                for (int p = 0; p < powers[k]; p++) {
+                    product.add(variable);
+                }
+            }
+            if (product.isEmpty()) {
+                product.add(Expression.number(1));
+            }
+            Expression term = product.get(product.size() - 1);
+            for (int f = product.size() - 2; f >= 0; f--) {
+                term = Expression.multiplication(product.get(f), term);
+            }
+            sum = sum == null ? term : Expression.add(term, sum);
+        }
+        return sum == null ? Expression.number(0) : sum;
+    }
+    
+    @Override public String toString() {
+        return toExpression().toString();
+    }
+    
+    @Override public boolean equals(Object thatObject) {
+        if (!(thatObject instanceof Polynomial)) {
+            return false;
+        }
+        final Polynomial that = (Polynomial) thatObject;
+        return Arrays.equals(variables, that.variables)
+            && Arrays.equals(starts, that.starts)
+            && Arrays.equals(factors, that.factors)
+            && Arrays.equals(powers, that.powers)
+            && Arrays.equals(coefficients, that.coefficients);
+    }
+    
+    @Override public int hashCode() {
+        return 31 * (31 * (31 * Arrays.hashCode(variables) + Arrays.hashCode(factors))
+            + Arrays.hashCode(powers)) + Arrays.hashCode(coefficients);
+    }
+    
+    /**
+     * @return this polynomial's terms, re-indexed over a superset of its variables
+     */
+    private Builder over(String[] superset) {
+        final int[] position = new int[variables.length];
+        for (int i = 0; i < variables.length; i++) {
+            position[i] = Arrays.binarySearch(superset, variables[i]);
+        }
+        final Builder result = new Builder(Integer.MAX_VALUE);
+        for (int t = 0; t < coefficients.length; t++) {
+            // superset is sorted too, so the re-indexed factors stay increasing
+            final int[] termFactors = new int[starts[t + 1] - starts[t]];
+            for (int k = 0; k < termFactors.length; k++) {
+                termFactors[k] = position[factors[starts[t] + k]];
+            }
+            result.add(termFactors, Arrays.copyOfRange(powers, starts[t], starts[t + 1]), coefficients[t]);
+        }
+        return result;
+    }
+    
+    private static String[] union(String[] first, String[] second) {
+        final TreeSet<String> names = new TreeSet<>(Arrays.asList(first));
+        names.addAll(Arrays.asList(second));
+        return names.toArray(NO_VARIABLES);
+    }
+    
+    /** Thrown by a Builder that would grow past its term limit; has no stack trace. */
+    private static final class OverBudget extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        private static final OverBudget INSTANCE = new OverBudget();
+        
+        private OverBudget() {
+            super(null, null, false, false);
+        }
+    }
+    
+    /**
+     * Mutable accumulator of terms over a fixed variable list, collecting like
+     * terms, that throws OverBudget rather than hold more than limit terms.
+     */
+    private static class Builder {
+        private final int limit;
+        private final Map<Monomial, double[]> terms = new HashMap<>();
+        
+        Builder(int limit) {
+            this.limit = limit;
+        }
+        
+        /**
+         * @param factors strictly increasing variable indices
+         * @param powers exponent of each variable, >= 0; variables with exponent 0 are dropped
+         */
+        void add(int[] factors, int[] powers, double coefficient) {
+            add(Monomial.of(factors, powers), coefficient);
+        }
+        
+        private void add(Monomial key, double coefficient) {
+            if (coefficient == 0) {
+                return;
+            }
+            final double[] sum = terms.get(key);
+            if (sum == null) {
+                if (terms.size() == limit) {
+                    throw OverBudget.INSTANCE;
+                }
+                terms.put(key, new double[] { coefficient });
+            } else {
+                sum[0] += coefficient;
+            }
+        }
+        
+        /**
+         * Add all terms of other into this builder.
+         * @return this builder
+         */
+        Builder addAll(Builder other) {
+            for (Map.Entry<Monomial, double[]> term : other.terms.entrySet()) {
+                add(term.getKey(), term.getValue()[0]);
+            }
+            return this;
+        }
+        
+        static Builder sum(Builder first, Builder second) {
+            return new Builder(first.limit).addAll(first).addAll(second);
+        }
+        
+        static Builder product(Builder first, Builder second) {
+            final Builder result = new Builder(first.limit);
+            for (Map.Entry<Monomial, double[]> a : first.terms.entrySet()) {
+                final double aCoefficient = a.getValue()[0];
+                for (Map.Entry<Monomial, double[]> b : second.terms.entrySet()) {
+                    result.add(a.getKey().times(b.getKey()), aCoefficient * b.getValue()[0]);
+                }
+            }
+            return result;
+        }
+        
+        /**
+         * @param variables the variable list the monomials are indexed by
+         * @return the normal form of the accumulated terms
+         */
+        Polynomial build(String[] variables) {
+            final List<Monomial> sorted = new ArrayList<>(terms.keySet());
+            Collections.sort(sorted);
+            // keep only variables that still occur, renumbered in the same order
+            final int[] renumbered = new int[variables.length];
+            int size = 0;
+            for (Monomial monomial : sorted) {
+                size += monomial.factors.length;
+                for (int factor : monomial.factors) {
+                    renumbered[factor] = 1;
+                }
+            }
+            int kept = 0;
+            for (int i = 0; i < variables.length; i++) {
+                renumbered[i] = renumbered[i] == 0 ? -1 : kept++;
+            }
+            final String[] keptVariables = new String[kept];
+            for (int i = 0; i < variables.length; i++) {
+                if (renumbered[i] >= 0) {
+                    keptVariables[renumbered[i]] = variables[i];
+                }
+            }
+            final int[] starts = new int[sorted.size() + 1];
+            final int[] factors = new int[size];
+            final int[] powers = new int[size];
+            final double[] coefficients = new double[sorted.size()];
+            for (int t = 0, k = 0; t < sorted.size(); t++) {
+                final Monomial monomial = sorted.get(t);
+                for (int f = 0; f < monomial.factors.length; f++, k++) {
+                    factors[k] = renumbered[monomial.factors[f]];
+                    powers[k] = monomial.powers[f];
+                }
+                starts[t + 1] = k;
+                coefficients[t] = terms.get(monomial)[0];
+            }
+            return new Polynomial(keptVariables, starts, factors, powers, coefficients);
+        }
+    }
+    
+    /**
+     * Sparse exponent vector usable as a hash key, ordered by normal-form term order:
+     * the variable indices with a nonzero exponent, in increasing order, and their exponents.
+     */
+    private static final class Monomial implements Comparable<Monomial> {
+        private final int[] factors;
+        private final int[] powers;
+        private final int degree;
+        private final int hash;
+        
+        private Monomial(int[] factors, int[] powers) {
+            this.factors = factors;
+            this.powers = powers;
+            int degree = 0;
+            for (int power : powers) {
+                degree += power;
+            }
+            this.degree = degree;
+            this.hash = 31 * Arrays.hashCode(factors) + Arrays.hashCode(powers);
+        }
+        
+        /**
+         * @param factors strictly increasing variable indices
+         * @param powers exponent of each variable, >= 0
+         * @return the monomial, without the variables whose exponent is 0
+         */
+        static Monomial of(int[] factors, int[] powers) {
+            int nonzero = 0;
+            for (int power : powers) {
+                if (power > 0) {
+                    nonzero++;
+                }
+            }
+            if (nonzero == powers.length) {
+                return new Monomial(factors, powers);
+            }
+            final int[] keptFactors = new int[nonzero];
+            final int[] keptPowers = new int[nonzero];
+            for (int k = 0, j = 0; k < powers.length; k++) {
+                if (powers[k] > 0) {
+                    keptFactors[j] = factors[k];
+                    keptPowers[j++] = powers[k];
+                }
+            }
+            return new Monomial(keptFactors, keptPowers);
+        }
+        
+        /**
+         * @return the monomial this * that, merging the two sorted factor lists
+         */
+        Monomial times(Monomial that) {
+            final int[] mergedFactors = new int[factors.length + that.factors.length];
+            final int[] mergedPowers = new int[mergedFactors.length];
+            int i = 0, j = 0, k = 0;
+            while (i < factors.length || j < that.factors.length) {
+                if (j == that.factors.length || i < factors.length && factors[i] < that.factors[j]) {
+                    mergedFactors[k] = factors[i];
+                    mergedPowers[k++] = powers[i++];
+                } else if (i == factors.length || that.factors[j] < factors[i]) {
+                    mergedFactors[k] = that.factors[j];
+                    mergedPowers[k++] = that.powers[j++];
+                } else {
+                    mergedFactors[k] = factors[i];
+                    mergedPowers[k++] = powers[i++] + that.powers[j++];
+                }
+            }
+            return k == mergedFactors.length
+                ? new Monomial(mergedFactors, mergedPowers)
+                : new Monomial(Arrays.copyOf(mergedFactors, k), Arrays.copyOf(mergedPowers, k));
+        }
+        
+        @Override public boolean equals(Object thatObject) {
+            if (!(thatObject instanceof Monomial)) {
+                return false;
+            }
+            final Monomial that = (Monomial) thatObject;
+            return hash == that.hash && Arrays.equals(factors, that.factors) && Arrays.equals(powers, that.powers);
+        }
+        
+        @Override public int hashCode() {
+            return hash;
+        }
+        
+        @Override public int compareTo(Monomial that) {
+            if (degree != that.degree) {
+                return degree > that.degree ? -1 : 1;
+            }
+            // compare the dense exponent vectors, treating a missing variable as exponent 0
+            int i = 0, j = 0;
+            while (i < factors.length || j < that.factors.length) {
+                final int index = Math.min(i < factors.length ? factors[i] : Integer.MAX_VALUE,
+                    j < that.factors.length ? that.factors[j] : Integer.MAX_VALUE);
+                final int power = i < factors.length && factors[i] == index ? powers[i++] : 0;
+                final int thatPower = j < that.factors.length && that.factors[j] == index ? that.powers[j++] : 0;
+                if (power != thatPower) {
+                    return power > thatPower ? -1 : 1;
+                }
+            }
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package expressivo;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A long-running server for the expression system, listening on the loopback
+ * interface only.
+ *
+ * The protocol is the console's, over a TCP connection: the client sends lines
+ * of UTF-8 text, each an expression or a command (!d/d or !simplify), and the
+ * server answers each line with exactly one line, the output the console would
+ * print for it. Each connection is a separate session with its own current
+ * expression. An empty line or end of input closes the connection.
+ *
+ * Clients may pipeline requests, sending many lines before reading any answers.
+ * Each request is still executed on its own, in order; but on each connection
+ * the answers go through one buffered writer, which is flushed only when no
+ * further request from that client is waiting, so the answers to a pipelined
+ * burst leave in a few large writes rather than one write per line.
+ *
+ * Requests are not batched across connections: each session executes its own
+ * requests as they arrive.
+ *
+ * At most maxSessions connections are served at once, each by one thread of a
+ * pool of that size, so the number of threads stays bounded however many
+ * clients connect. A connection that arrives while all are busy is accepted
+ * and waits, in arrival order, until a session ends; its requests are answered
+ * once it is served. A request that fails, even with an Error such as a
+ * StackOverflowError on very deeply nested input, is answered with a line
+ * describing the error, and its session goes on. All sessions share the warm
+ * parser and the process-wide caches of compiled expressions and interned
+ * nodes, which the server primes when it starts.
+ */
+public final class Server implements Closeable {
+
+    // Abstraction function:
+    //   AF(socket, pool, connections) = an expression server accepting sessions
+    //     on socket, whose sessions run or wait on pool over connections
+    // Rep invariant:
+    //   socket is bound to a loopback address
+    //   connections contains the open client sockets accepted and not yet
+    //     finished, served or waiting
+    // Safety from rep exposure:
+    //   all fields are private and final and never returned
+    // Thread safety argument:
+    //   each connection is served by a single pool thread, with its own Session
+    //   and streams; connections is a concurrent set; the shared caches used by
+    //   Session are themselves thread safe
+
+    /** Default limit on concurrently served connections. */
+    public static final int MAX_SESSIONS = 256;
+
+    private static final int BACKLOG = 1024;
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final String[] WARM_UP = {
+        "x*x + 2*x*y + 1", "!d/dx", "!simplify x=1 y=2", "(a + b) * (a + 3)", "!simplify a=1 b=2",
+    };
+
+    private final ServerSocket socket;
+    private final ExecutorService pool;
+    private final Set<Socket> connections = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+
+    /**
+     * Make a server listening on localhost that serves at most MAX_SESSIONS
+     * connections at once, with its parser and caches warmed up.
+     * @param port TCP port to listen on, or 0 for any free port
+     * @throws IOException if the port cannot be bound
+     */
+    public Server(int port) throws IOException {
+        this(port, MAX_SESSIONS);
+    }
+
+    /**
+     * Make a server listening on localhost, with its parser and caches warmed up.
+     * @param port TCP port to listen on, or 0 for any free port
+     * @param maxSessions most connections to serve at once, at least 1; further
+     *        connections wait until a session ends
+     * @throws IOException if the port cannot be bound
+     */
+    public Server(int port, int maxSessions) throws IOException {
+        if (maxSessions < 1) {
+            throw new IllegalArgumentException("maxSessions must be at least 1: " + maxSessions);
+        }
+        this.socket = new ServerSocket(port, BACKLOG, InetAddress.getLoopbackAddress());
+        this.pool = Executors.newFixedThreadPool(maxSessions, task -> {
+            final Thread thread = new Thread(task, "expressivo-server");
+            thread.setDaemon(true);
+            return thread;
+        });
+        warmUp();
+    }
+
+    /**
+     * @return the port this server is listening on
+     */
+    public int port() {
+        return socket.getLocalPort();
+    }
+
+    /**
+     * Accept and serve connections until this server is closed.
+     * @throws IOException if accepting a connection fails while the server is open
+     */
+    public void serve() throws IOException {
+        while (true) {
+            final Socket client;
+            try {
+                client = socket.accept();
+            } catch (SocketException se) {
+                if (socket.isClosed()) {
+                    return;
+                }
+                throw se;
+            }
+            client.setTcpNoDelay(true);
+            connections.add(client);
+            try {
+                pool.execute(() -> {
+                    try {
+                        handle(client);
+                    } catch (IOException ioe) {
+                        // the client went away; nothing to answer
+                    } finally {
+                        connections.remove(client);
+                        try {
+                            client.close();
+                        } catch (IOException ioe) {
+                            // already closing
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException closing) {
+                // the server was closed while this connection was accepted
+                connections.remove(client);
+                client.close();
+            }
+        }
+    }
+
+    /**
+     * Stop accepting connections and close every open connection.
+     * @throws IOException if closing the listening socket fails
+     */
+    @Override public void close() throws IOException {
+        socket.close();
+        pool.shutdownNow();
+        for (Socket client : connections) {
+            client.close();
+        }
+    }
+
+    /**
+     * Serve one session until the client sends an empty line or closes its end.
+     * @param client connected socket
+     * @throws IOException if reading from or writing to client fails
+     */
+    private static void handle(Socket client) throws IOException {
+        final BufferedReader in = new BufferedReader(
+            new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8), BUFFER_SIZE);
+        final Writer out = new BufferedWriter(
+            new OutputStreamWriter(client.getOutputStream(), StandardCharsets.UTF_8), BUFFER_SIZE);
+        final Main.Session session = new Main.Session();
+        String input;
+        while ((input = in.readLine()) != null && !input.isEmpty()) {
+            out.write(session.execute(input));
+            out.write('\n');
+            if (!in.ready()) {
+                // no pipelined request is waiting, so send the answers buffered so far
+                out.flush();
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Run a few requests through a session, so that the parser's grammar tables
+     * are loaded and the common paths are compiled before the first client arrives.
+     */
+    private static void warmUp() {
+        final Main.Session session = new Main.Session();
+        for (String input : WARM_UP) {
+            session.execute(input);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package expressivo;
+
+/**
+ * An n-ary Sum node: the sum of three or more operands, held in one flat array.
+ * 
+ * A Sum is a different representation of the same value as the right-nested
+ * chain of binary Additions over its operands, e0 + (e1 + (... + en)), which is
+ * what the parsers build for a chain of + operators. It is equal to that chain,
+ * has the same hash code, and prints the same text, so parse(e.toString())
+ * equals e as usual. Make Sums with Expression.sum() or Expression.flatten().
+ * 
+ * The right operand of a Sum, as a binary node, is a view of its operands from
+ * the second on, sharing this node's arrays, so it costs one small object and no
+ * copying.
+ */
+public class Sum implements Expression {
+    
+    // Abstraction function:
+    //   AF(operands, fingerprints, treeSizes, depths, offset) =
+    //     operands[offset] + (operands[offset+1] + (... + operands[n-1]))
+    //     where n = operands.length
+    // Rep invariant:
+    //   0 <= offset <= n - 2
+    //   for offset <= i <= n-2:
+    //     fingerprints[i] == Hashing.composite(Hashing.ADDITION, operands[i].fingerprint(), fingerprints[i+1])
+    //   fingerprints[n-1] == operands[n-1].fingerprint()
+    //   for offset <= i <= n-1:
+    //     treeSizes[i] and depths[i] are Metrics.size() and Metrics.depth() of
+    //     operands[i] + (... + operands[n-1])
+    //   operands, fingerprints, treeSizes and depths are never modified after construction
+    // Safety from rep exposure:
+    //   all fields are private and final; the arrays are shared only with views
+    //     of this node's suffixes, never with clients
+    
+    private final Expression[] operands;
+    private final long[] fingerprints;
+    private final long[] treeSizes;
+    private final int[] depths;
+    private final int offset;
+    
+    /**
+     * Make a Sum of operands, which the caller must not modify afterwards.
+     * @param operands two or more operands
+     */
+    Sum(Expression[] operands) {
+        this.operands = operands;
+        this.fingerprints = new long[operands.length];
+        this.treeSizes = new long[operands.length];
+        this.depths = new int[operands.length];
+        this.offset = 0;
+        final int last = operands.length - 1;
+        fingerprints[last] = operands[last].fingerprint();
+        treeSizes[last] = Metrics.size(operands[last]);
+        depths[last] = Metrics.depth(operands[last]);
+        for (int i = last - 1; i >= 0; i--) {
+            fingerprints[i] = Hashing.composite(Hashing.ADDITION, operands[i].fingerprint(), fingerprints[i + 1]);
+            treeSizes[i] = Metrics.compositeSize(Metrics.size(operands[i]), treeSizes[i + 1]);
+            depths[i] = 1 + Math.max(Metrics.depth(operands[i]), depths[i + 1]);
+        }
+        checkRep();
+    }
+    
+    private Sum(Sum whole, int offset) {
+        this.operands = whole.operands;
+        this.fingerprints = whole.fingerprints;
+        this.treeSizes = whole.treeSizes;
+        this.depths = whole.depths;
+        this.offset = offset;
+    }
+    
+    private void checkRep() {
+        assert offset <= operands.length - 2;
+    }
+    
+    /**
+     * @return number of operands, at least 2
+     */
+    int size() {
+        return operands.length - offset;
+    }
+    
+    /**
+     * @param i index of an operand, 0 <= i < size()
+     * @return operand i
+     */
+    Expression operand(int i) {
+        return operands[offset + i];
+    }
+    
+    /**
+     * @return the left operand of this sum as a binary node, its first operand
+     */
+    Expression left() {
+        return operands[offset];
+    }
+    
+    /**
+     * @return the right operand of this sum as a binary node: the last operand if
+     *         there are two, otherwise a Sum of all the operands but the first
+     */
+    Expression right() {
+        return offset + 2 == operands.length ? operands[offset + 1] : new Sum(this, offset + 1);
+    }
+    
+    @Override public String toString() {
+        return Traversal.toString(this);
+    }
+    
+    @Override public boolean equals(Object thatObject) {
+        if (this == thatObject) {
+            return true;
+        }
+        if (!(thatObject instanceof Sum || thatObject instanceof Addition)) {
+            return false;
+        }
+        final Expression that = (Expression) thatObject;
+        return fingerprint() == that.fingerprint() && Traversal.equal(this, that);
+    }
+    
+    @Override public int hashCode() {
+        return Hashing.toHashCode(fingerprint());
+    }
+    
+    @Override public long fingerprint() {
+        return fingerprints[offset];
+    }
+    
+    /**
+     * @return number of nodes in this expression as a tree of binary nodes, as Metrics.size()
+     */
+    long treeSize() {
+        return treeSizes[offset];
+    }
+    
+    /**
+     * @return number of nodes on the longest path to a leaf, as Metrics.depth()
+     */
+    int depth() {
+        return depths[offset];
+    }
+    
+    @Override public boolean isPrimitive() {
+        return false;
+    }
+    
+    @Override public Expression differentiate(String variable) {
+        return Differentiator.differentiate(this, variable);
+    }
+}
@@ -0,0 +1,134 @@
+package expressivo;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The process-wide symbol table of variable names.
+ *
+ * Every distinct variable name is registered once, and gets a dense integer id:
+ * ids are 0, 1, 2, ... in order of registration, and never change. Every
+ * Variable carries the id of its name, so an environment can be a double[]
+ * indexed by id, and looking up a variable's value is array indexing instead of
+ * hashing and comparing strings.
+ *
+ * The table only grows: a name stays registered, with its id, for the life of
+ * the process, so a long-running server or batch keeps every name it has seen.
+ * Nothing here costs time or space proportional to the whole table, except
+ * registering a name, which may copy the table of names.
+ */
+public final class Symbols {
+
+    // Abstraction function:
+    //   AF(names, count) = the table mapping names[i] to id i, for 0 <= i < count
+    // Rep invariant:
+    //   names[0..count) are distinct nonempty strings of letters
+    //   ids maps exactly names[i] to i, for each 0 <= i < count
+    // Safety from rep exposure:
+    //   all fields are private; names is never returned
+    // Thread safety argument:
+    //   names are registered under the class lock; a name is written to names
+    //   before its id is published through the concurrent map ids, and readers
+    //   only look up ids they obtained from ids or from a Variable built after
+
+    /** Value of an unbound variable in an environment indexed by id. */
+    public static final double UNBOUND = Double.NaN;
+
+    private static final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private static volatile String[] names = new String[64];
+    private static volatile int count = 0;
+
+    private Symbols() {
+    }
+
+    /**
+     * @param name a variable name, a case-sensitive nonempty string of letters
+     * @return the id of name, registering it if it is new
+     * @throws IllegalArgumentException if name is not a nonempty string of letters
+     */
+    public static int id(String name) {
+        final Integer id = ids.get(name);
+        return id != null ? id : register(name);
+    }
+
+    /**
+     * @param id the id of a registered name
+     * @return the name with that id
+     * @throws IllegalArgumentException if no name has that id
+     */
+    public static String name(int id) {
+        if (id < 0 || id >= count) {
+            throw new IllegalArgumentException("no variable has id " + id);
+        }
+        return names[id];
+    }
+
+    /**
+     * @return the number of registered names, one more than the largest id
+     */
+    public static int size() {
+        return count;
+    }
+
+    /**
+     * Convert an environment from its map form to its array form.
+     * Takes time and space proportional to environment.size() and the largest id
+     * of its variables, not to the size of the whole table.
+     * @param environment maps variables to values; variables must be nonempty strings of letters,
+     *        and values must not be NaN, which stands for UNBOUND in the array form
+     * @return an array whose entry id(v) is environment.get(v) for every variable v in
+     *         environment, and UNBOUND for every other variable with an id below its length;
+     *         its length is one more than the largest id of a variable in environment,
+     *         so variables with larger ids, beyond its end, are unbound as well
+     * @throws IllegalArgumentException if environment has an invalid variable name or a NaN value
+     */
+    public static double[] environment(Map<String, Double> environment) {
+        final int[] keys = new int[environment.size()];
+        final double[] values = new double[keys.length];
+        int length = 0;
+        int i = 0;
+        for (Map.Entry<String, Double> binding : environment.entrySet()) {
+            if (Double.isNaN(binding.getValue())) {
+                throw new IllegalArgumentException("value of " + binding.getKey() + " is NaN");
+            }
+            keys[i] = id(binding.getKey());
+            values[i] = binding.getValue();
+            length = Math.max(length, keys[i] + 1);
+            i++;
+        }
+        final double[] result = new double[length];
+        Arrays.fill(result, UNBOUND);
+        for (i = 0; i < keys.length; i++) {
+            result[keys[i]] = values[i];
+        }
+        return result;
+    }
+
+    /**
+     * @param environment an environment indexed by id
+     * @param id a variable id
+     * @return true iff environment binds the variable with that id
+     */
+    static boolean isBound(double[] environment, int id) {
+        return id < environment.length && !Double.isNaN(environment[id]);
+    }
+
+    private static synchronized int register(String name) {
+        final Integer existing = ids.get(name);
+        if (existing != null) {
+            return existing;
+        }
+        if (!name.matches("[A-Za-z]+")) {
+            throw new IllegalArgumentException("invalid variable name " + name);
+        }
+        final int id = count;
+        if (id == names.length) {
+            names = Arrays.copyOf(names, id * 2);
+        }
+        names[id] = name;
+        count = id + 1;
+        ids.put(name, id);
+        return id;
+    }
+}
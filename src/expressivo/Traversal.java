@@ -0,0 +1,366 @@
+package expressivo;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stack-safe traversals over Expression trees.
+ * 
+ * Every traversal keeps its pending work on explicit, growable arrays
+ * instead of the Java call stack, so expressions of any depth can be
+ * processed with a bounded amount of thread stack.
+ */
+class Traversal {
+    
+    private Traversal() {
+    }
+    
+    /**
+     * A bottom-up computation over an expression: the result for a composite
+     * node is computed from the results for its operands.
+     * @param <R> type of the result for each node
+     */
+    interface Fold<R> {
+        
+        /**
+         * @param number a leaf of the expression
+         * @return result for number
+         */
+        R number(Number number);
+        
+        /**
+         * @param variable a leaf of the expression
+         * @return result for variable
+         */
+        R variable(Variable variable);
+        
+        /**
+         * @param sum a node of the expression
+         * @param left result for sum.left()
+         * @param right result for sum.right()
+         * @return result for sum
+         */
+        R addition(Addition sum, R left, R right);
+        
+        /**
+         * @param product a node of the expression
+         * @param left result for product.left()
+         * @param right result for product.right()
+         * @return result for product
+         */
+        R multiplication(Multiplication product, R left, R right);
+        
+        /**
+         * By default, folds sum as the equivalent right-nested chain of binary
+         * Additions, calling addition() on each link from the right.
+         * @param sum a node of the expression
+         * @param operands results for sum's operands, in order
+         * @return result for sum
+         */
+        default R sum(Sum sum, List<R> operands) {
+            final int last = operands.size() - 1;
+            Expression right = sum.operand(last);
+            R result = operands.get(last);
+            for (int i = last - 1; i >= 0; i--) {
+                final Addition link = new Addition(sum.operand(i), right);
+                result = addition(link, operands.get(i), result);
+                right = link;
+            }
+            return result;
+        }
+        
+        /**
+         * By default, folds product as the equivalent right-nested chain of binary
+         * Multiplications, calling multiplication() on each link from the right.
+         * @param product a node of the expression
+         * @param operands results for product's operands, in order
+         * @return result for product
+         */
+        default R product(Product product, List<R> operands) {
+            final int last = operands.size() - 1;
+            Expression right = product.operand(last);
+            R result = operands.get(last);
+            for (int i = last - 1; i >= 0; i--) {
+                final Multiplication link = new Multiplication(product.operand(i), right);
+                result = multiplication(link, operands.get(i), result);
+                right = link;
+            }
+            return result;
+        }
+    }
+    
+    /**
+     * Apply a fold to every node of an expression, in post-order: the left
+     * operand's subtree, then the right operand's subtree, then the node
+     * (for a Sum or Product, each operand's subtree in order, then the node).
+     * A subtree that occurs more than once is folded once per occurrence.
+     * 
+     * @param expression root of the traversal
+     * @param fold computation to apply
+     * @return result of fold for expression
+     */
+    static <R> R fold(Expression expression, Fold<R> fold) {
+        return run(expression, fold, null);
+    }
+    
+    /**
+     * Apply a fold to every distinct node of an expression, in post-order.
+     * The result for a node is reused for every later occurrence of the same
+     * object, so the fold must depend only on the node and its operands' results.
+     * 
+     * @param expression root of the traversal
+     * @param fold computation to apply
+     * @return result of fold for expression
+     */
+    static <R> R foldShared(Expression expression, Fold<R> fold) {
+        return run(expression, fold, new IdentityHashMap<Expression, R>());
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static <R> R run(Expression root, Fold<R> fold, Map<Expression, R> memo) {
+        // nodes[0..top) is the work stack; expanded[i] is true once the operands
+        // of nodes[i] have been pushed, so the node is ready to be combined.
+        // values[0..count) holds the results of finished subtrees, in order.
+        Expression[] nodes = new Expression[16];
+        boolean[] expanded = new boolean[16];
+        int top = 0;
+        Object[] values = new Object[16];
+        int count = 0;
+        
+        nodes[top++] = root;
+        while (top > 0) {
+            top--;
+            final Expression node = nodes[top];
+            final boolean ready = expanded[top];
+            nodes[top] = null;
+            expanded[top] = false;
+            
+            Object result;
+            if (!ready && memo != null && memo.containsKey(node)) {
+                result = memo.get(node);
+            } else if (node instanceof Addition || node instanceof Multiplication) {
+                if (!ready) {
+                    if (top + 3 > nodes.length) {
+                        nodes = Arrays.copyOf(nodes, nodes.length * 2);
+                        expanded = Arrays.copyOf(expanded, expanded.length * 2);
+                    }
+                    final boolean isSum = node instanceof Addition;
+                    nodes[top] = node;
+                    expanded[top++] = true;
+                    nodes[top++] = isSum ? ((Addition) node).right() : ((Multiplication) node).right();
+                    nodes[top++] = isSum ? ((Addition) node).left() : ((Multiplication) node).left();
+                    continue;
+                }
+                final R right = (R) values[--count];
+                final R left = (R) values[--count];
+                values[count] = values[count + 1] = null;
+                result = node instanceof Addition
+                    ? fold.addition((Addition) node, left, right)
+                    : fold.multiplication((Multiplication) node, left, right);
+            } else if (node instanceof Sum || node instanceof Product) {
+                final boolean isSum = node instanceof Sum;
+                final int size = isSum ? ((Sum) node).size() : ((Product) node).size();
+                if (!ready) {
+                    while (top + size + 1 > nodes.length) {
+                        nodes = Arrays.copyOf(nodes, nodes.length * 2);
+                        expanded = Arrays.copyOf(expanded, expanded.length * 2);
+                    }
+                    nodes[top] = node;
+                    expanded[top++] = true;
+                    for (int i = size - 1; i >= 0; i--) {
+                        nodes[top++] = isSum ? ((Sum) node).operand(i) : ((Product) node).operand(i);
+                    }
+                    continue;
+                }
+                final List<R> operands = Collections.unmodifiableList(
+                    Arrays.asList((R[]) Arrays.copyOfRange(values, count - size, count)));
+                Arrays.fill(values, count - size, count, null);
+                count -= size;
+                result = isSum
+                    ? fold.sum((Sum) node, operands)
+                    : fold.product((Product) node, operands);
+            } else if (node instanceof Number) {
+                result = fold.number((Number) node);
+            } else if (node instanceof Variable) {
+                result = fold.variable((Variable) node);
+            } else {
+                throw new IllegalArgumentException("cannot traverse " + node.getClass());
+            }
+            
+            if (memo != null && !memo.containsKey(node)) {
+                memo.put(node, (R) result);
+            }
+            if (count == values.length) {
+                values = Arrays.copyOf(values, count * 2);
+            }
+            values[count++] = result;
+        }
+        assert count == 1;
+        return (R) values[0];
+    }
+    
+    /**
+     * @param expression an expression
+     * @return expression.toString(), computed without recursion
+     */
+    static String toString(Expression expression) {
+        final long start = Metrics.start();
+        final StringBuilder out = new StringBuilder();
+        try {
+            print(expression, out);
+        } catch (IOException ioe) {
+            throw new AssertionError("StringBuilder does not throw IOException", ioe);
+        }
+        final String text = out.toString();
+        final long nanos = Metrics.elapsed(start);
+        if (nanos >= 0) {
+            Metrics.record(Metrics.Operation.TO_STRING, nanos,
+                Metrics.size(expression), text.length(), Metrics.depth(expression));
+        }
+        return text;
+    }
+    
+    /**
+     * Write expression.toString() to out in a single pass over the tree.
+     * Takes time and extra space linear in the size of the output.
+     * @param expression an expression
+     * @param out destination of the text
+     * @throws IOException if out throws IOException
+     */
+    static void print(Expression expression, Appendable out) throws IOException {
+        // pending[0..top) holds subtrees still to print and the operator and
+        // parenthesis characters between them, with the next item to print on top
+        Object[] pending = new Object[16];
+        int top = 0;
+        pending[top++] = expression;
+        while (top > 0) {
+            final Object item = pending[--top];
+            pending[top] = null;
+            if (item instanceof Character) {
+                out.append((Character) item);
+                continue;
+            }
+            final Expression node = (Expression) item;
+            final Character operator;
+            if (isSum(node)) {
+                operator = PLUS;
+            } else if (isProduct(node)) {
+                operator = TIMES;
+            } else {
+                out.append(node.toString());
+                continue;
+            }
+            final Expression left = left(node), right = right(node);
+            if (top + 7 > pending.length) {
+                pending = Arrays.copyOf(pending, pending.length * 2);
+            }
+            top = pushOperand(pending, top, right);
+            pending[top++] = operator;
+            top = pushOperand(pending, top, left);
+        }
+    }
+    
+    private static final Character PLUS = '+', TIMES = '*', OPEN = '(', CLOSE = ')';
+    
+    private static int pushOperand(Object[] pending, int top, Expression operand) {
+        if (operand.isPrimitive()) {
+            pending[top++] = operand;
+        } else {
+            pending[top++] = CLOSE;
+            pending[top++] = operand;
+            pending[top++] = OPEN;
+        }
+        return top;
+    }
+    
+    /**
+     * Structural equality without recursion.
+     * @param first an expression
+     * @param second an expression
+     * @return true iff first and second are structurally equal, as defined by Expression.equals
+     */
+    static boolean equal(Expression first, Expression second) {
+        // pending[0..top) holds pairs of subtrees still to compare
+        Expression[] pending = new Expression[16];
+        int top = 0;
+        pending[top++] = first;
+        pending[top++] = second;
+        while (top > 0) {
+            final Expression b = pending[--top];
+            final Expression a = pending[--top];
+            if (a == b) {
+                continue;
+            }
+            if (a.fingerprint() != b.fingerprint()) {
+                return false;
+            }
+            if (a.isPrimitive() && b.isPrimitive()) {
+                if (!a.equals(b)) {
+                    return false;
+                }
+                continue;
+            } else if (!(isSum(a) && isSum(b) || isProduct(a) && isProduct(b))) {
+                return false;
+            }
+            final Expression aLeft = left(a), aRight = right(a), bLeft = left(b), bRight = right(b);
+            if (top + 4 > pending.length) {
+                pending = Arrays.copyOf(pending, pending.length * 2);
+            }
+            pending[top++] = aRight;
+            pending[top++] = bRight;
+            pending[top++] = aLeft;
+            pending[top++] = bLeft;
+        }
+        return true;
+    }
+    
+    /**
+     * @param expression an expression
+     * @return true iff expression is an Addition or a Sum
+     */
+    static boolean isSum(Expression expression) {
+        return expression instanceof Addition || expression instanceof Sum;
+    }
+    
+    /**
+     * @param expression an expression
+     * @return true iff expression is a Multiplication or a Product
+     */
+    static boolean isProduct(Expression expression) {
+        return expression instanceof Multiplication || expression instanceof Product;
+    }
+    
+    /**
+     * @param composite an expression for which isSum() or isProduct() is true
+     * @return the left operand of composite, viewed as a binary node
+     */
+    static Expression left(Expression composite) {
+        if (composite instanceof Addition) {
+            return ((Addition) composite).left();
+        } else if (composite instanceof Multiplication) {
+            return ((Multiplication) composite).left();
+        } else if (composite instanceof Sum) {
+            return ((Sum) composite).left();
+        }
+        return ((Product) composite).left();
+    }
+    
+    /**
+     * @param composite an expression for which isSum() or isProduct() is true
+     * @return the right operand of composite, viewed as a binary node
+     */
+    static Expression right(Expression composite) {
+        if (composite instanceof Addition) {
+            return ((Addition) composite).right();
+        } else if (composite instanceof Multiplication) {
+            return ((Multiplication) composite).right();
+        } else if (composite instanceof Sum) {
+            return ((Sum) composite).right();
+        }
+        return ((Product) composite).right();
+    }
+}
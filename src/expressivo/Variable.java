@@ -2,11 +2,16 @@ package expressivo;
 
 class Variable implements Expression {
     private final String name;
+    private final int id;
+    private final long fingerprint;
     
     // Abstraction function:
     //   represents the variable name
     // Rep invariant:
-    //   name is a nonempty string of letters
+    //   name is a nonempty string of letters, checked once per distinct name
+    //     when Symbols registers it
+    //   id == Symbols.id(name)
+    //   fingerprint == Hashing.variable(name)
     // Safety from rep exposure:
     //   name is final and immutable
     
@@ -14,17 +19,38 @@ class Variable implements Expression {
      * Create a Variable instance.
      * 
      * @param name nonempty string of letters
+     * @throws IllegalArgumentException if name is not a nonempty string of letters
      */
     public Variable(String name) {
+        this.id = Symbols.id(name);
         this.name = name;
+        this.fingerprint = Hashing.variable(name);
         checkRep();
     }
 
+    /**
+     * Returns the name of this variable.
+     * 
+     * @return the variable's name
+     */
+    String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the id of this variable's name in the symbol table.
+     * 
+     * @return the variable's id, Symbols.id(getName())
+     */
+    int getId() {
+        return id;
+    }
+
     /**
      * Checks the rep invariant.
      */
     private void checkRep() {
-        assert name.matches("[a-zA-Z]+");
+        assert Symbols.name(id).equals(name);
     }
     
     @Override 
@@ -36,18 +62,23 @@ class Variable implements Expression {
     public boolean equals(Object obj) {
         if (!(obj instanceof Variable)) return false;
         Variable other = (Variable) obj;
-        return this.name.equals(other.name);
+        return this.id == other.id;
     }
 
     @Override 
     public int hashCode() {
-        return name.hashCode();
+        return Hashing.toHashCode(fingerprint);
+    }
+    
+    @Override 
+    public long fingerprint() {
+        return fingerprint;
     }
     
     public boolean isPrimitive() {
 		return true;
     }
     @Override public Expression differentiate(String variable) {
-        return name.equals(variable) ? new Number(1) : new Number(0);
+        return name.equals(variable) ? Expression.number(1) : Expression.number(0);
     }
 }
\ No newline at end of file
@@ -0,0 +1,127 @@
+package expressivo;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Tests for BinaryFormat.
+ */
+public class BinaryFormatTest {
+
+    // Testing strategy
+    //   stream contains 0, 1, several expressions
+    //   expressions: number, variable, nested sums and products, repeated
+    //     variables across expressions, shared subtrees (DAG), flat chains of
+    //     three or more operands, which come back as the same node
+    //   read from a heap buffer, from a memory-mapped file
+    //   malformed input: bad header, truncated record, negative or NaN number
+    
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+    
+    private static byte[] write(Expression... expressions) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (BinaryFormat.Writer writer = new BinaryFormat.Writer(bytes)) {
+            for (Expression expression : expressions) {
+                writer.write(expression);
+            }
+        }
+        return bytes.toByteArray();
+    }
+    
+    @Test
+    public void testRoundTrip() throws IOException {
+        Expression[] expressions = {
+            Expression.parse("2.5"),
+            Expression.parse("x"),
+            Expression.parse("(x + 1) * (y * x + 3)"),
+            Expression.parse("longName * x + longName"),
+            Expression.parse("binA + binB*binC*2 + (binA + binB + 1) + binC"),
+        };
+        BinaryFormat.Reader reader = new BinaryFormat.Reader(ByteBuffer.wrap(write(expressions)));
+        for (Expression expression : expressions) {
+            assertTrue(reader.hasNext());
+            assertSame(expression, reader.next());
+        }
+        assertFalse(reader.hasNext());
+    }
+    
+    @Test
+    public void testEmptyStream() throws IOException {
+        assertFalse(new BinaryFormat.Reader(ByteBuffer.wrap(write())).hasNext());
+    }
+    
+    @Test
+    public void testSharedSubtreesStayCompact() throws IOException {
+        Expression expression = Expression.parse("x * y + x");
+        for (int i = 0; i < 40; i++) {
+            expression = Expression.multiplication(expression, expression);
+        }
+        byte[] bytes = write(expression);
+        assertTrue(bytes.length < 1000);
+        assertEquals(expression, new BinaryFormat.Reader(ByteBuffer.wrap(bytes)).next());
+    }
+    
+    @Test
+    public void testMemoryMappedFile() throws IOException {
+        Path file = Files.createTempFile("expressions", ".bin");
+        try {
+            Expression first = Expression.parse("x*x + 2*x + 1");
+            Expression second = first.differentiate("x");
+            try (FileOutputStream out = new FileOutputStream(file.toFile())) {
+                out.write(write(first, second));
+            }
+            BinaryFormat.Reader reader = BinaryFormat.Reader.open(file);
+            assertEquals(Arrays.asList(first, second), Arrays.asList(reader.next(), reader.next()));
+            assertFalse(reader.hasNext());
+        } finally {
+            Files.delete(file);
+        }
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void testBadHeader() {
+        new BinaryFormat.Reader(ByteBuffer.wrap(new byte[] { 'E', 'X', 'P', 'X', 1 }));
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void testTruncated() throws IOException {
+        byte[] bytes = write(Expression.parse("x + 1.5"));
+        new BinaryFormat.Reader(ByteBuffer.wrap(Arrays.copyOf(bytes, bytes.length - 3))).next();
+    }
+    
+    private static ByteBuffer numberRecord(double value) {
+        ByteBuffer buffer = ByteBuffer.allocate(15);
+        buffer.put(new byte[] { 'E', 'X', 'P', 'B', 1, BinaryFormat.NUMBER });
+        buffer.putDouble(value);
+        buffer.put(BinaryFormat.END);
+        buffer.flip();
+        return buffer;
+    }
+    
+    @Test
+    public void testNumberRecord() {
+        assertEquals(Expression.number(2.5), new BinaryFormat.Reader(numberRecord(2.5)).next());
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void testNegativeNumber() {
+        new BinaryFormat.Reader(numberRecord(-1)).next();
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void testNaNNumber() {
+        new BinaryFormat.Reader(numberRecord(Double.NaN)).next();
+    }
+}
@@ -5,6 +5,10 @@ package expressivo;
 
 import static org.junit.Assert.*;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
 import org.junit.Test;
 
 /**
@@ -13,7 +17,30 @@ import org.junit.Test;
 public class CommandsTest {
 
     // Testing strategy
-    //   TODO
+    //   differentiate():
+    //     expression is a number, a variable, a sum, a product, nested
+    //     variable occurs in the expression or doesn't
+    //     result collects like terms
+    //     variable is invalid
+    //     String and Expression overloads agree; chaining Expression overload
+    //     product of many sums, whose expansion exceeds the term limit
+    //     expansion with coefficients of 1e7 or more, whose text parses back
+    //   simplify():
+    //     environment binds all, some or none of the expression's variables
+    //     environment binds variables that are not in the expression
+    //     expression is a number, a variable, a sum, a product, nested
+    //     same expression simplified repeatedly with different environments
+    //     result with remaining variables collects like terms
+    //     String and Expression overloads agree
+    //     same input simplified again, closed or not: not parsed again
+    //     remaining product of many sums, whose expansion exceeds the term limit
+    //     environment as a map or as an array indexed by variable id, with or
+    //       without unbound entries, shorter than the symbol table
+    //   gradient():
+    //     expression is a number, a variable, a sum, a product, nested, shared
+    //     variable occurs once or many times; partial for a variable not in the expression
+    //     environment misses a variable
+    //     agrees with differentiate() for every variable
     
     @Test(expected=AssertionError.class)
     public void testAssertionsEnabled() {
@@ -21,6 +48,233 @@ public class CommandsTest {
     }
     
     
-    // TODO tests for Commands.differentiate() and Commands.simplify()
+    @Test
+    public void testDifferentiateNumber() {
+        assertEquals("0.0", Commands.differentiate("3", "x"));
+    }
+    
+    @Test
+    public void testDifferentiateOtherVariable() {
+        assertEquals("0.0", Commands.differentiate("y*y + 2", "x"));
+    }
+    
+    @Test
+    public void testDifferentiateCollectsLikeTerms() {
+        assertEquals(Expression.parse("2*x + y + 3"),
+            Expression.parse(Commands.differentiate("x*x + 3*x + x*y + 7", "x")));
+    }
+    
+    @Test
+    public void testDifferentiateProductOfSums() {
+        assertEquals(Expression.parse("2*x + y + 1"),
+            Expression.parse(Commands.differentiate("(x + 1) * (x + y)", "x")));
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void testDifferentiateInvalidVariable() {
+        Commands.differentiate("x", "x1");
+    }
+    
+    @Test
+    public void testSimplifyCollectsLikeTerms() {
+        Map<String,Double> environment = new HashMap<>();
+        environment.put("y", 2.0);
+        assertEquals(Expression.parse("3*x*x + 2*x"),
+            Expression.parse(Commands.simplify("x*x*y + x*x + x*y", environment)));
+    }
     
+    @Test
+    public void testSimplifyAllBound() {
+        Map<String,Double> environment = new HashMap<>();
+        environment.put("x", 2.0);
+        environment.put("y", 3.0);
+        environment.put("z", 100.0);
+        assertEquals(Expression.number(11.0), Expression.parse(Commands.simplify("x*y + x + 3", environment)));
+    }
+    
+    @Test
+    public void testSimplifyNumber() {
+        assertEquals("4.5", Commands.simplify("4.5", new HashMap<String,Double>()));
+    }
+    
+    @Test
+    public void testSimplifySomeBound() {
+        Map<String,Double> environment = new HashMap<>();
+        environment.put("x", 2.0);
+        assertEquals(Expression.parse("y + 6"), Expression.parse(Commands.simplify("x*3 + y", environment)));
+    }
+    
+    @Test
+    public void testSimplifyNoneBound() {
+        assertEquals(Expression.parse("x*y"), Expression.parse(Commands.simplify("x*y", new HashMap<String,Double>())));
+    }
+    
+    @Test
+    public void testSimplifyRepeatedEnvironments() {
+        Map<String,Double> environment = new HashMap<>();
+        for (int i = 0; i < 10; i++) {
+            environment.put("x", (double) i);
+            assertEquals(Expression.number(i * i + 1.0),
+                Expression.parse(Commands.simplify("x*x + 1", environment)));
+        }
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void testSimplifyInvalid() {
+        Commands.simplify("x +", new HashMap<String,Double>());
+    }
+    
+    @Test
+    public void testDifferentiateExpressionOverload() {
+        Expression expression = Expression.parse("x*x*x + x*y");
+        Expression first = Commands.differentiate(expression, "x");
+        assertEquals(Commands.differentiate(expression.toString(), "x"), first.toString());
+        Expression second = Commands.differentiate(first, "x");
+        assertEquals(Expression.parse("6*x"), second);
+    }
+    
+    @Test
+    public void testSimplifyExpressionOverload() {
+        Map<String,Double> environment = new HashMap<>();
+        environment.put("x", 2.0);
+        Expression expression = Expression.parse("x*y + x*x");
+        assertEquals(Commands.simplify(expression.toString(), environment),
+            Commands.simplify(expression, environment).toString());
+        environment.put("y", 1.0);
+        assertEquals(Expression.number(6), Commands.simplify(expression, environment));
+    }
+    
+    @Test
+    public void testGradientProduct() {
+        Map<String,Double> environment = new HashMap<>();
+        environment.put("x", 3.0);
+        environment.put("y", 5.0);
+        Gradient gradient = Commands.gradient("x*x*y + y + 2", environment);
+        assertEquals(52.0, gradient.value(), 0);
+        assertEquals(30.0, gradient.partial("x"), 0);
+        assertEquals(10.0, gradient.partial("y"), 0);
+        assertEquals(0.0, gradient.partial("z"), 0);
+        assertEquals(2, gradient.partials().size());
+    }
+    
+    @Test
+    public void testGradientNumber() {
+        Gradient gradient = Commands.gradient("4", new HashMap<String,Double>());
+        assertEquals(4.0, gradient.value(), 0);
+        assertTrue(gradient.partials().isEmpty());
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void testGradientUnbound() {
+        Commands.gradient("x + y", Collections.singletonMap("x", 1.0));
+    }
+    
+    @Test
+    public void testGradientMatchesDifferentiate() {
+        String expression = "(a + b*c) * (a*a + 3*c) + b*(c + 1)*(a + b)";
+        Map<String,Double> environment = new HashMap<>();
+        environment.put("a", 1.5);
+        environment.put("b", 2.0);
+        environment.put("c", 0.5);
+        Gradient gradient = Commands.gradient(Expression.parse(expression), environment);
+        for (String variable : new String[] { "a", "b", "c" }) {
+            String derivative = Commands.differentiate(expression, variable);
+            assertEquals(Double.parseDouble(Commands.simplify(derivative, environment)),
+                gradient.partial(variable), 1e-9);
+        }
+        assertEquals(Double.parseDouble(Commands.simplify(expression, environment)), gradient.value(), 1e-9);
+    }
+    
+    @Test
+    public void testSimplifyArrayEnvironment() {
+        Expression expression = Expression.parse("x*y + x + z");
+        Map<String,Double> environment = new HashMap<>();
+        environment.put("x", 2.0);
+        environment.put("y", 3.0);
+        assertEquals(Commands.simplify(expression, environment),
+            Commands.simplify(expression, Symbols.environment(environment)));
+        environment.put("z", 0.5);
+        assertEquals(Expression.number(8.5), Commands.simplify(expression, Symbols.environment(environment)));
+        assertEquals(Commands.simplify(expression, new HashMap<String,Double>()),
+            Commands.simplify(expression, new double[0]));
+    }
+    
+    @Test
+    public void testDifferentiateProductOfManySumsStaysSmall() {
+        // expanding x*(aa + ba)*(ab + bb)*... would take 2^15 terms
+        StringBuilder input = new StringBuilder("x");
+        Map<String,Double> environment = new HashMap<>();
+        environment.put("x", 0.5);
+        for (int i = 0; i < 15; i++) {
+            char suffix = (char) ('a' + i);
+            input.append("*(a").append(suffix).append(" + b").append(suffix).append(")");
+            environment.put("a" + suffix, 1.0 + i);
+            environment.put("b" + suffix, 0.25);
+        }
+        String derivative = Commands.differentiate(input.toString(), "x");
+        assertTrue(derivative.length() < 10 * input.length());
+        double partial = Commands.gradient(input.toString(), environment).partial("x");
+        assertEquals(partial, Double.parseDouble(Commands.simplify(derivative, environment)), 1e-9 * partial);
+    }
+    
+    @Test
+    public void testSimplifyProductOfManySumsStaysSmall() {
+        // after binding x, expanding y*(x + aa + ba)*... would take 3^15 terms
+        StringBuilder input = new StringBuilder("y");
+        Map<String,Double> environment = new HashMap<>();
+        environment.put("y", 0.5);
+        for (int i = 0; i < 15; i++) {
+            char suffix = (char) ('a' + i);
+            input.append("*(x + a").append(suffix).append(" + b").append(suffix).append(")");
+            environment.put("a" + suffix, 1.0 + i);
+            environment.put("b" + suffix, 0.25);
+        }
+        String simplified = Commands.simplify(input.toString(), Collections.singletonMap("x", 2.0));
+        assertTrue(simplified.length() < 10 * input.length());
+        double value = Double.parseDouble(Commands.simplify(simplified, environment));
+        environment.put("x", 2.0);
+        assertEquals(Double.parseDouble(Commands.simplify(input.toString(), environment)), value, 1e-9 * value);
+    }
+    
+    @Test
+    public void testDifferentiateLargeCoefficientsParse() {
+        // (x + 1)^40 expands to coefficients up to about 1.4e11
+        StringBuilder input = new StringBuilder("(x + 1)");
+        for (int i = 1; i < 40; i++) {
+            input.append("*(x + 1)");
+        }
+        String derivative = Commands.differentiate(input.toString(), "x");
+        assertFalse(derivative, derivative.contains("E"));
+        assertEquals(Commands.differentiate(Expression.parse(input.toString()), "x"), Expression.parse(derivative));
+        assertEquals(derivative, Expression.parse(derivative).toString());
+        // d/dx (x + 1)^40 at x = 1 is 40 * 2^39
+        assertEquals(40 * Math.pow(2, 39),
+            Double.parseDouble(Commands.simplify(derivative, Collections.singletonMap("x", 1.0))), 1);
+    }
+    
+    @Test
+    public void testSimplifyStringParsesOnce() {
+        final String input = "commandsParseOnceX * y + 2";
+        final Thread thread = Thread.currentThread();
+        final int[] parses = { 0 };
+        final Metrics.Listener listener = (operation, nanos, inputSize, outputSize, depth) -> {
+            if (operation == Metrics.Operation.PARSE && Thread.currentThread() == thread) {
+                parses[0]++;
+            }
+        };
+        Map<String,Double> all = new HashMap<>();
+        all.put("commandsParseOnceX", 2.0);
+        all.put("y", 3.0);
+        Metrics.addListener(listener);
+        Metrics.enable();
+        try {
+            assertEquals("(2.0*y)+2.0", Commands.simplify(input, Collections.singletonMap("commandsParseOnceX", 2.0)));
+            assertEquals("(3.0*y)+2.0", Commands.simplify(input, Collections.singletonMap("commandsParseOnceX", 3.0)));
+            assertEquals("8.0", Commands.simplify(input, all));
+        } finally {
+            Metrics.disable();
+            Metrics.removeListener(listener);
+        }
+        assertEquals(1, parses[0]);
+    }
 }
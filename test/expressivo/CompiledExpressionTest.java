@@ -0,0 +1,195 @@
+package expressivo;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Tests for CompiledExpression.
+ */
+public class CompiledExpressionTest {
+
+    // Testing strategy
+    // evaluate():
+    //   expression is a number, a variable, a sum, a product, nested
+    //   variable occurs once or many times
+    //   environment given as slot array, as map, or as array indexed by id;
+    //     map or array misses a variable
+    // evaluateBatch():
+    //   rows: 0, 1, fewer than a block, more than a block
+    //   expression has no variables, one variable, several variables
+    //   column missing, columns of different lengths
+    // gradient():
+    //   variable used once, many times, as both operands of a product; shared subtree
+    // residual():
+    //   binding binds none, some, all of the variables; binds extra variables
+    //   bound part shared with free part; same bound set with different values
+    //   result matches evaluating with the union of the bindings
+    // instructions():
+    //   repeated subexpression shared by identity, only structurally, commuted
+    //   no repeated subexpression
+    
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+    
+    @Test
+    public void testEvaluateSlots() {
+        CompiledExpression compiled = CompiledExpression.compile(Expression.parse("x*x + y*2 + x"));
+        assertEquals(2, compiled.variables().size());
+        double[] values = new double[2];
+        values[compiled.slotOf("x")] = 3;
+        values[compiled.slotOf("y")] = 5;
+        assertEquals(22.0, compiled.evaluate(values), 0);
+        assertEquals(-1, compiled.slotOf("z"));
+    }
+    
+    @Test
+    public void testEvaluateNumber() {
+        CompiledExpression compiled = CompiledExpression.compile(Expression.parse("2.5"));
+        assertEquals(2.5, compiled.evaluate(new HashMap<String,Double>()), 0);
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void testEvaluateUnbound() {
+        CompiledExpression.compile(Expression.parse("x + y")).evaluate(new HashMap<String,Double>());
+    }
+    
+    @Test
+    public void testEvaluateBatchMatchesEvaluate() {
+        CompiledExpression compiled = CompiledExpression.compile(Expression.parse("(x + 1) * (y * x + 2)"));
+        int rows = 2500;
+        double[] xs = new double[rows], ys = new double[rows];
+        for (int r = 0; r < rows; r++) {
+            xs[r] = r * 0.5;
+            ys[r] = rows - r;
+        }
+        Map<String,double[]> columns = new HashMap<>();
+        columns.put("x", xs);
+        columns.put("y", ys);
+        double[] result = compiled.evaluateBatch(columns);
+        assertEquals(rows, result.length);
+        Map<String,Double> environment = new HashMap<>();
+        for (int r = 0; r < rows; r++) {
+            environment.put("x", xs[r]);
+            environment.put("y", ys[r]);
+            assertEquals(compiled.evaluate(environment), result[r], 0);
+        }
+    }
+    
+    @Test
+    public void testEvaluateBatchEmptyAndConstant() {
+        CompiledExpression compiled = CompiledExpression.compile(Expression.parse("x*3"));
+        assertEquals(0, compiled.evaluateBatch(new double[][] { {} }, 0).length);
+        assertArrayEquals(new double[] { 7 },
+            CompiledExpression.compile(Expression.parse("3+4")).evaluateBatch(new HashMap<String,double[]>()), 0);
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void testEvaluateBatchMismatchedColumns() {
+        Map<String,double[]> columns = new HashMap<>();
+        columns.put("x", new double[3]);
+        columns.put("y", new double[4]);
+        CompiledExpression.compile(Expression.parse("x+y")).evaluateBatch(columns);
+    }
+    @Test
+    public void testCommonSubexpressionsShared() {
+        // x, y, x+y, (x+y)*(x+y) and their sum: five instructions
+        CompiledExpression compiled = CompiledExpression.compile(Expression.parse("(x + y) * (y + x) + (x + y)*(x + y)"));
+        assertEquals(5, compiled.instructions());
+        Map<String,Double> environment = new HashMap<>();
+        environment.put("x", 2.0);
+        environment.put("y", 3.0);
+        assertEquals(50.0, compiled.evaluate(environment), 0);
+    }
+    
+    @Test
+    public void testNoCommonSubexpressions() {
+        CompiledExpression compiled = CompiledExpression.compile(Expression.parse("x*2 + y*3"));
+        assertEquals(7, compiled.instructions());
+    }
+    
+    @Test
+    public void testDeepSharedEvaluatesOnce() {
+        Expression e = Expression.variable("x");
+        for (int i = 0; i < 200; i++) {
+            e = Expression.add(e, e);
+        }
+        CompiledExpression compiled = CompiledExpression.compile(e);
+        assertEquals(201, compiled.instructions());
+        assertEquals(Math.pow(2, 200), compiled.evaluate(new double[] { 1 }), 0);
+        assertArrayEquals(new double[] { Math.pow(2, 200), 0 },
+            compiled.evaluateBatch(new double[][] { { 1, 0 } }, 2), 0);
+    }
+    
+    @Test
+    public void testGradientSharedSubtree() {
+        // e = (x*y + x) * (x*y + x), de/dx = 2(xy + x)(y + 1), de/dy = 2(xy + x)x
+        CompiledExpression compiled = CompiledExpression.compile(Expression.parse("(x*y + x) * (x*y + x)"));
+        double[] values = new double[2], gradient = new double[2];
+        values[compiled.slotOf("x")] = 2;
+        values[compiled.slotOf("y")] = 3;
+        assertEquals(64.0, compiled.gradient(values, gradient), 0);
+        assertEquals(64.0, gradient[compiled.slotOf("x")], 0);
+        assertEquals(32.0, gradient[compiled.slotOf("y")], 0);
+    }
+    
+    @Test
+    public void testEvaluateById() {
+        CompiledExpression compiled = CompiledExpression.compile(Expression.parse("x*x + y*2"));
+        double[] environment = new double[Symbols.size()];
+        Arrays.fill(environment, Symbols.UNBOUND);
+        environment[Symbols.id("x")] = 3;
+        environment[Symbols.id("y")] = 5;
+        assertEquals(19.0, compiled.evaluateById(environment), 0);
+        environment[Symbols.id("y")] = Symbols.UNBOUND;
+        try {
+            compiled.evaluateById(environment);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException iae) {
+            // y is unbound
+        }
+    }
+    
+    @Test
+    public void testResidualMatchesFullEvaluation() {
+        Expression expression = Expression.parse("(a*a + b) * x + (a + b) * (x*y + a)");
+        CompiledExpression compiled = CompiledExpression.compile(expression);
+        for (double a = 0; a < 3; a++) {
+            Map<String,Double> binding = new HashMap<>();
+            binding.put("a", a);
+            binding.put("b", 2.0);
+            binding.put("unused", 9.0);
+            CompiledExpression residual = compiled.residual(binding);
+            assertEquals(Arrays.asList("x", "y"), residual.variables());
+            assertTrue(residual.instructions() < compiled.instructions());
+            for (double x = 0; x < 3; x++) {
+                Map<String,Double> environment = new HashMap<>(binding);
+                environment.put("x", x);
+                environment.put("y", 0.5);
+                assertEquals(compiled.evaluate(environment), residual.evaluate(environment), 0);
+            }
+        }
+    }
+    
+    @Test
+    public void testResidualAllOrNoneBound() {
+        CompiledExpression compiled = CompiledExpression.compile(Expression.parse("x*y + 2"));
+        Map<String,Double> binding = new HashMap<>();
+        CompiledExpression none = compiled.residual(binding);
+        assertEquals(compiled.variables(), none.variables());
+        assertEquals(compiled.instructions(), none.instructions());
+        binding.put("x", 3.0);
+        binding.put("y", 4.0);
+        CompiledExpression all = CompiledExpression.residual(Expression.parse("x*y + 2"), binding);
+        assertTrue(all.variables().isEmpty());
+        assertEquals(1, all.instructions());
+        assertEquals(14.0, all.evaluate(new double[0]), 0);
+    }
+    
+}
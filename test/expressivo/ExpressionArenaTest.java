@@ -0,0 +1,96 @@
+package expressivo;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Tests for ExpressionArena.
+ */
+public class ExpressionArenaTest {
+
+    // Testing strategy
+    //   load(), toExpression(): number, variable, nested, shared subtrees,
+    //     repeated numbers and variables are stored once, chains of three or
+    //     more operands come back as the same flat node as their parse
+    //   differentiate(): matches Expression.differentiate
+    //   evaluate(): all variables bound, a variable unbound
+    //   print(), toString(): matches Expression.toString, deep expression
+    //   node index out of range
+    
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+    
+    @Test
+    public void testLoadRoundTrip() {
+        ExpressionArena arena = new ExpressionArena();
+        Expression expression = Expression.parse("(x + 1) * (y * x + 1)");
+        int node = arena.load(expression);
+        assertEquals(expression, arena.toExpression(node));
+        assertEquals(expression.toString(), arena.toString(node));
+        assertEquals(7, arena.size());
+    }
+    
+    @Test
+    public void testLoadFlatChainsRoundTrip() {
+        ExpressionArena arena = new ExpressionArena();
+        Expression expression = Expression.parse("arenaA + arenaB*arenaC*2 + (arenaA + arenaB + 1) + arenaC");
+        assertTrue(expression instanceof Sum);
+        assertSame(expression, arena.toExpression(arena.load(expression)));
+    }
+    
+    @Test
+    public void testLeavesStoredOnce() {
+        ExpressionArena arena = new ExpressionArena();
+        assertEquals(arena.variable("x"), arena.variable("x"));
+        assertEquals(arena.number(2), arena.number(2));
+        assertNotEquals(arena.number(2), arena.number(3));
+    }
+    
+    @Test
+    public void testDifferentiateMatchesExpression() {
+        ExpressionArena arena = new ExpressionArena();
+        Expression expression = Expression.parse("x*x*y + (x + 2) * (y + x)");
+        int derivative = arena.differentiate(arena.load(expression), "x");
+        assertEquals(expression.differentiate("x"), arena.toExpression(derivative));
+        assertEquals(arena.number(0), arena.differentiate(arena.load(expression), "z"));
+    }
+    
+    @Test
+    public void testEvaluate() {
+        ExpressionArena arena = new ExpressionArena();
+        int node = arena.load(Expression.parse("x*x + 3*y"));
+        Map<String,Double> environment = new HashMap<>();
+        environment.put("x", 2.0);
+        environment.put("y", 1.5);
+        assertEquals(8.5, arena.evaluate(node, environment), 0);
+        assertEquals(4.0, arena.evaluate(arena.differentiate(node, "x"), environment), 0);
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void testEvaluateUnbound() {
+        ExpressionArena arena = new ExpressionArena();
+        arena.evaluate(arena.load(Expression.parse("x + y")), new HashMap<String,Double>());
+    }
+    
+    @Test
+    public void testDeepExpression() {
+        ExpressionArena arena = new ExpressionArena();
+        int node = arena.variable("x");
+        for (int i = 0; i < 100000; i++) {
+            node = i % 2 == 0 ? arena.add(arena.variable("y"), node) : arena.multiply(arena.number(2), node);
+        }
+        String text = arena.toString(node);
+        assertEquals(Expression.parse(text, ParseMode.DIRECT), arena.toExpression(node));
+    }
+    
+    @Test(expected=IndexOutOfBoundsException.class)
+    public void testNodeOutOfRange() {
+        new ExpressionArena().toExpression(0);
+    }
+}
@@ -5,6 +5,25 @@ package expressivo;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayOutputStream;
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 import org.junit.Test;
 
 /**
@@ -32,6 +51,12 @@ public class ExpressionTest {
     //   - test different numbers have different hashcodes
     //   - test different expressions have different hashcodes
     //   - test complex expressions maintain consistency
+    //   - test swapped operands have different hashcodes
+    //   - test many distinct expressions spread over many hashcodes
+    //
+    // fingerprint():
+    //   - equal expressions, built shared or unshared, have equal fingerprints
+    //   - swapped operands, different variants have different fingerprints
 	//
     // Variables:
     //   - Variables are correctly represented as strings
@@ -45,6 +70,44 @@ public class ExpressionTest {
     //       Operation.left, right type: Number, Variable, Operation
     //       Operations follow order of operations or don't
     //     input is a valid expression or isn't
+    // parse(input, mode)
+    //   mode: ANTLR, ANTLR_SLL, DIRECT
+    //   input: primitives, sums and products chained right to left,
+    //     parenthesized groups, spaces, invalid input
+    //   ANTLR_SLL syntax error: nothing printed, reported through the bail strategy
+    // parseAll(inputs)
+    //   - inputs: empty, valid and invalid mixed, more than one worker's share
+    //   - results are in input order and equal to parse(input)
+    // parse(reader), parse(path)
+    //   - reader returns the text in small chunks splitting numbers and variables
+    //   - text longer than the parser's buffer
+    //   - invalid text
+    // differentiate() sharing
+    //   - repeated subtree is differentiated into one shared node
+    //   - long products produce derivatives linear in the number of factors
+    // simplifiedAdd(), simplifiedMultiplication()
+    //   - both operands numbers; 0 on the left or right; 1 on the left or right
+    //   - no operand is 0 or 1: same object as add() or multiplication()
+    //   - derivatives contain no sums with 0 and no products with 0 or 1
+    //   - folded constants of 1e7 or more print as text that parses back
+    // appendTo(out)
+    //   - out is a StringBuilder with existing content, a Writer
+    //   - expression is primitive or nested
+    // deep expressions
+    //   - toString, equals, hashCode, differentiate on a 100000-term chain
+    // interning (Expression.add, multiplication, number, variable, parse)
+    //   - structurally equal expressions are the same object
+    //   - different expressions are different objects
+    //   - interned and directly constructed expressions are still equal
+    // sum(operands), product(operands), flatten(e)
+    //   - operands: one, two, three or more; last operand is itself a chain
+    //   - flat node vs equal binary chain: equals both ways, hashCode, toString
+    //   - flat node vs differently grouped chain, other operator
+    //   - parse in every mode returns the same flat node as flatten of a binary tree
+    //   - chain of 10000 terms; mixed sums and products
+    //   - reparsing toString() of a 10000-term chain, which nests it in parentheses,
+    //     in every mode, in time linear in its length
+    //   - differentiate, simplify agree with the binary chain
 	private final Expression zero = new Number(0);
     private final Expression one = new Number(1);
     private final Expression two = new Number(2);
@@ -269,25 +332,439 @@ public class ExpressionTest {
 
     @Test
     public void testDifferentiatePlus() {
-        Expression exp = new Addition(zero, one);
-        assertEquals("expected differentiated expression", exp1.differentiate("x"), exp);
+        assertEquals("expected differentiated expression", exp1.differentiate("x"), one);
     }
 
     @Test
     public void testDifferentiateMultiply() {
-        Expression exp = new Addition(new Multiplication(one, one),
-            new Multiplication(x, zero));
-        assertEquals("expected differentiated expression", exp2.differentiate("x"), exp);
+        assertEquals("expected differentiated expression", exp2.differentiate("x"), one);
     }
 
     @Test
     public void testDifferentiateSingleSameVariable() {
-        Expression left = new Multiplication(new Addition(zero, one),
-            new Multiplication(x, one));
-        Expression right = new Multiplication(new Addition(one, x),
-            new Addition(new Multiplication(one, one), new Multiplication(x, zero)));
-        Expression exp = new Addition(left, right);
+        Expression exp = new Addition(new Multiplication(x, one), new Addition(one, x));
         assertEquals("expected differentiated expression", exp3.differentiate("x"), exp);
     }
+    
+    @Test
+    public void testInternedFactoriesShareNodes() {
+        Expression e1 = Expression.add(Expression.variable("x"), Expression.number(1));
+        Expression e2 = Expression.add(Expression.variable("x"), Expression.number(1));
+        assertSame(e1, e2);
+        assertNotSame(e1, Expression.add(Expression.number(1), Expression.variable("x")));
+    }
+    
+    @Test
+    public void testInternedNegativeZero() {
+        assertSame(Expression.number(0.0), Expression.number(-0.0));
+        assertSame(Expression.add(x, Expression.number(0.0)), Expression.add(x, Expression.number(-0.0)));
+    }
+    
+    @Test
+    public void testInternedParseSharesNodes() {
+        Expression e1 = Expression.parse("(x + 1) * y");
+        Expression e2 = Expression.parse("(x+1)*y");
+        assertSame(e1, e2);
+        assertEquals(new Multiplication(new Addition(x, one), y), e1);
+    }
+    
+    @Test
+    public void testParseDirectMatchesAntlr() {
+        String[] inputs = { "1", "x", "1.5", "1 + x", "x * 1", "(1 + x) * (x * 1)",
+            "1+2+3", "x*y+2*z", "x*(y+z)*2", "((x))", "  a +b*  c " };
+        for (String input : inputs) {
+            assertSame(input, Expression.parse(input, ParseMode.ANTLR),
+                Expression.parse(input, ParseMode.DIRECT));
+            assertSame(input, Expression.parse(input, ParseMode.ANTLR),
+                Expression.parse(input, ParseMode.ANTLR_SLL));
+        }
+    }
+    
+    @Test
+    public void testParseSllIllegal() {
+        String[] inputs = { "", "3 x", "x +", "(x", "x)", "()", "x ** y", "x + $" };
+        for (String input : inputs) {
+            try {
+                Expression.parse(input, ParseMode.ANTLR_SLL);
+                fail("expected IllegalArgumentException for " + input);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        assertEquals(Expression.parse("x*y"), Expression.parse("x*y", ParseMode.ANTLR_SLL));
+    }
+    
+    @Test
+    public void testParseSllErrorIsQuiet() {
+        PrintStream stderr = System.err;
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        System.setErr(new PrintStream(printed, true));
+        try {
+            for (String input : new String[] { "1 + + 2", "x ** y", "(x", "x + $" }) {
+                try {
+                    Expression.parse(input, ParseMode.ANTLR_SLL);
+                    fail("expected IllegalArgumentException for " + input);
+                } catch (IllegalArgumentException iae) {
+                    assertTrue(iae.getMessage(), iae.getMessage().startsWith(
+                        input.contains("$") ? "token recognition error" : "syntax error at 1:"));
+                }
+            }
+        } finally {
+            System.setErr(stderr);
+        }
+        assertEquals("", printed.toString());
+        // the default parse still has its listeners afterwards
+        try {
+            Expression.parse("1 + + 2");
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException iae) {
+            assertFalse(iae.getMessage().startsWith("syntax error"));
+        }
+    }
+    
+    @Test
+    public void testParseDirectIllegal() {
+        String[] inputs = { "", "3 x", "x +", "(x", "x)", "()", "x\ty", "x ** y" };
+        for (String input : inputs) {
+            try {
+                Expression.parse(input, ParseMode.DIRECT);
+                fail("expected IllegalArgumentException for " + input);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+    
+    @Test
+    public void testDifferentiateSharesRepeatedSubtree() {
+        Expression sum = Expression.add(x, Expression.multiplication(x, y));
+        Expression square = Expression.multiplication(sum, sum);
+        Addition derivative = (Addition) square.differentiate("x");
+        Expression leftFactor = ((Multiplication) derivative.left()).left();
+        Expression rightFactor = ((Multiplication) derivative.right()).right();
+        assertSame(leftFactor, rightFactor);
+    }
+    
+    @Test
+    public void testSimplifiedAdd() {
+        assertEquals(Expression.number(3), Expression.simplifiedAdd(one, two));
+        assertSame(Expression.variable("x"), Expression.simplifiedAdd(zero, x));
+        assertSame(Expression.variable("x"), Expression.simplifiedAdd(x, zero));
+        assertSame(Expression.add(x, one), Expression.simplifiedAdd(x, one));
+    }
+    
+    @Test
+    public void testSimplifiedMultiplication() {
+        assertEquals(Expression.number(2), Expression.simplifiedMultiplication(one, two));
+        assertSame(Expression.number(0), Expression.simplifiedMultiplication(x, zero));
+        assertSame(Expression.number(0), Expression.simplifiedMultiplication(zero, exp4));
+        assertSame(Expression.variable("x"), Expression.simplifiedMultiplication(one, x));
+        assertSame(Expression.variable("x"), Expression.simplifiedMultiplication(x, one));
+        assertSame(Expression.multiplication(two, x), Expression.simplifiedMultiplication(two, x));
+    }
+    
+    @Test
+    public void testDifferentiateFolds() {
+        // d(x*y + 3*x*x)/dx = y + 3*(x + x), with no 0 or 1 operands left over
+        Expression expression = Expression.parse("x*y + 3*(x*x)");
+        Expression expected = Expression.parse("y + 3*(x + x)");
+        assertEquals(expected, expression.differentiate("x"));
+        assertSame(Expression.number(0), expression.differentiate("z"));
+    }
+    
+    @Test
+    public void testDifferentiateFoldsLargeConstants() {
+        // the derivative folds 123456789 * (1 + 1) into one number, 246913578
+        Expression expression = Expression.parse("123456789 * (x + x) + 100000000 * (x * y)");
+        Expression derivative = expression.differentiate("x");
+        assertEquals(Expression.parse("246913578 + 100000000 * y"), derivative);
+        String text = derivative.toString();
+        assertFalse(text, text.contains("E"));
+        assertEquals(derivative, Expression.parse(text));
+        assertEquals(derivative, Expression.parse(text, ParseMode.DIRECT));
+        assertSame(Expression.number(246913578),
+            Expression.parse("123456789 * (x + x)").differentiate("x"));
+    }
+    
+    @Test
+    public void testDifferentiateLongProduct() {
+        Expression product = x;
+        for (int i = 0; i < 500; i++) {
+            product = Expression.multiplication(x, product);
+        }
+        Expression derivative = product;
+        for (int i = 0; i < 3; i++) {
+            derivative = derivative.differentiate("x");
+        }
+        assertTrue(derivative instanceof Addition);
+        // shared subterms keep each derivative linear in the size of the product
+        assertTrue(Metrics.nodes(derivative) + " nodes", Metrics.nodes(derivative) <= 20 * 501);
+        // d^3/dx^3 x^501 = 501*500*499 x^498, which is 501*500*499 at x = 1
+        assertEquals(501.0 * 500 * 499,
+            CompiledExpression.compile(derivative).evaluate(Collections.singletonMap("x", 1.0)), 1e-6);
+    }
+    
+    @Test
+    public void testDeepExpression() {
+        StringBuilder input = new StringBuilder("x");
+        for (int i = 0; i < 100000; i++) {
+            input.append(i % 2 == 0 ? "+y" : "*x");
+        }
+        Expression deep = Expression.parse(input.toString(), ParseMode.DIRECT);
+        Expression copy = Expression.parse(deep.toString(), ParseMode.DIRECT);
+        assertEquals(deep, copy);
+        assertEquals(deep.hashCode(), copy.hashCode());
+        Expression derivative = deep.differentiate("x");
+        assertEquals(derivative, Expression.parse(derivative.toString(), ParseMode.DIRECT));
+    }
+    
+    @Test
+    public void testAppendToStringBuilder() {
+        StringBuilder out = new StringBuilder("= ");
+        exp3.appendTo(out);
+        assertEquals("= " + exp3.toString(), out.toString());
+        assertEquals("(1.0+x)*(x*1.0)", exp3.toString());
+    }
+    
+    @Test
+    public void testAppendToWriter() throws IOException {
+        StringWriter out = new StringWriter();
+        x.appendTo((Appendable) out);
+        out.write(' ');
+        Expression.add(exp4, two).appendTo((Appendable) out);
+        assertEquals("x (x*y)+2.0", out.toString());
+    }
+    
+    @Test
+    public void testHashCodeOrderSensitive() {
+        assertNotEquals(new Multiplication(x, y).hashCode(), new Multiplication(y, x).hashCode());
+        assertNotEquals(new Addition(x, y).hashCode(), new Addition(y, x).hashCode());
+    }
+    
+    @Test
+    public void testHashCodeDistribution() {
+        Set<Integer> hashes = new HashSet<>();
+        Expression sum = x;
+        for (int i = 0; i < 10000; i++) {
+            sum = new Addition(sum, new Multiplication(y, new Number(i)));
+            hashes.add(sum.hashCode());
+        }
+        assertTrue(hashes.size() > 9990);
+    }
+    
+    @Test
+    public void testFingerprint() {
+        Expression shared = Expression.parse("(x + 1) * y");
+        Expression unshared = new Multiplication(new Addition(new Variable("x"), new Number(1)), new Variable("y"));
+        assertEquals(shared.fingerprint(), unshared.fingerprint());
+        assertNotEquals(exp4.fingerprint(), new Multiplication(y, x).fingerprint());
+        assertNotEquals(exp4.fingerprint(), new Addition(x, y).fingerprint());
+        assertEquals(new Number(0.0).fingerprint(), new Number(-0.0).fingerprint());
+    }
+    
+    /** A Reader that returns at most 3 characters per read. */
+    private static Reader trickle(String text) {
+        return new FilterReader(new StringReader(text)) {
+            @Override public int read(char[] buffer, int offset, int length) throws IOException {
+                return super.read(buffer, offset, Math.min(length, 3));
+            }
+        };
+    }
+    
+    @Test
+    public void testParseReaderChunked() throws IOException {
+        String input = "longVariableName * 123.4567 + (x + yy) * 2";
+        assertEquals(Expression.parse(input), Expression.parse(trickle(input)));
+    }
+    
+    @Test
+    public void testParseReaderLong() throws IOException {
+        StringBuilder input = new StringBuilder("x");
+        for (int i = 0; i < 20000; i++) {
+            input.append(" + y*").append(i);
+        }
+        assertEquals(Expression.parse(input.toString(), ParseMode.DIRECT),
+            Expression.parse(new StringReader(input.toString())));
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void testParseReaderIllegal() throws IOException {
+        Expression.parse(trickle("x + (y * 2"));
+    }
+    
+    @Test
+    public void testParsePath() throws IOException {
+        Path file = Files.createTempFile("expression", ".txt");
+        try {
+            Files.write(file, "(x + 1) * y".getBytes(StandardCharsets.UTF_8));
+            assertEquals(Expression.parse("(x + 1) * y"), Expression.parse(file));
+        } finally {
+            Files.delete(file);
+        }
+    }
 
+    @Test
+    public void testParseAllEmpty() {
+        assertTrue(Expression.parseAll(Collections.<String>emptyList()).isEmpty());
+    }
+    
+    @Test
+    public void testParseAllInOrderWithErrors() {
+        List<String> inputs = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            inputs.add(i % 7 == 0 ? "x + * " + i : "x*" + i + " + (y + " + i + ")");
+        }
+        List<ParseResult> results = Expression.parseAll(inputs);
+        assertEquals(inputs.size(), results.size());
+        for (int i = 0; i < inputs.size(); i++) {
+            ParseResult result = results.get(i);
+            assertEquals(inputs.get(i), result.input());
+            if (i % 7 == 0) {
+                assertFalse(result.isValid());
+                assertFalse(result.expression().isPresent());
+                assertTrue(result.error().isPresent());
+            } else {
+                assertTrue(result.isValid());
+                assertEquals(Expression.parse(inputs.get(i)), result.expression().get());
+                assertFalse(result.error().isPresent());
+            }
+        }
+    }
+    
+    @Test
+    public void testParseAfterInvalidInputOnSameThread() {
+        try {
+            Expression.parse("(x + ");
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException iae) {
+            // the thread's reusable parser must recover for the next input
+        }
+        assertEquals(Expression.add(x, y), Expression.parse("x + y"));
+    }
+    
+    @Test
+    public void testSumEqualsBinaryChain() {
+        Expression flat = Expression.sum(Arrays.asList(x, y, two));
+        Expression binary = new Addition(x, new Addition(y, two));
+        assertTrue(flat instanceof Sum);
+        assertEquals(binary, flat);
+        assertEquals(flat, binary);
+        assertEquals(binary.hashCode(), flat.hashCode());
+        assertEquals(binary.toString(), flat.toString());
+        assertNotEquals(new Addition(new Addition(x, y), two), flat);
+        assertNotEquals(new Multiplication(x, new Multiplication(y, two)), flat);
+        assertNotEquals(Expression.product(Arrays.asList(x, y, two)), flat);
+        assertEquals(new Multiplication(x, new Multiplication(y, two)), Expression.product(Arrays.asList(x, y, two)));
+    }
+    
+    @Test
+    public void testChainFormsShareOneNode() {
+        // flat first: the factories find the Sum and Product made by parse
+        Expression u = Expression.variable("chainFormsU"), v = Expression.variable("chainFormsV");
+        Expression parsed = Expression.parse("chainFormsU + chainFormsV + 2 + chainFormsU*chainFormsV*2");
+        assertTrue(parsed instanceof Sum);
+        Expression product = Expression.multiplication(u, Expression.multiplication(v, two));
+        assertTrue(product instanceof Product);
+        assertSame(parsed, Expression.add(u, Expression.add(v, Expression.add(two, product))));
+        assertSame(parsed, Expression.sum(Arrays.asList(u, Expression.add(v, Expression.add(two, product)))));
+        // binary first: parse and sum() find the chain made by add()
+        Expression p = Expression.variable("chainFormsP"), q = Expression.variable("chainFormsQ");
+        Expression binary = Expression.add(p, Expression.add(q, Expression.add(one, p)));
+        assertTrue(binary instanceof Addition);
+        assertSame(binary, Expression.parse("chainFormsP + chainFormsQ + 1 + chainFormsP"));
+        assertSame(binary, Expression.parse("chainFormsP + chainFormsQ + 1 + chainFormsP", ParseMode.DIRECT));
+        assertSame(binary, Expression.sum(Arrays.asList(p, q, one, p)));
+        assertSame(binary, Expression.flatten(new Addition(p, new Addition(q, new Addition(one, p)))));
+    }
+    
+    @Test
+    public void testSumOperandCounts() {
+        assertSame(Expression.variable("x"), Expression.sum(Arrays.asList(x)));
+        assertSame(Expression.add(x, y), Expression.sum(Arrays.asList(x, y)));
+        assertSame(Expression.multiplication(x, y), Expression.product(Arrays.asList(x, y)));
+        // a chain as the last operand continues the chain
+        assertSame(Expression.sum(Arrays.asList(x, y, two, one)),
+                Expression.sum(Arrays.asList(x, new Addition(y, Expression.sum(Arrays.asList(two, one))))));
+        // but one as another operand stays grouped
+        assertEquals(4, Metrics.nodes(Expression.sum(Arrays.asList(Expression.add(y, x), Expression.variable("x")))));
+        try {
+            Expression.sum(Collections.<Expression>emptyList());
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException iae) {
+            // a sum needs an operand
+        }
+    }
+    
+    @Test
+    public void testParseBuildsFlatNodes() {
+        String input = "x + y + 2 + x*y*x + (x + y)*(2 + x + y)";
+        Expression parsed = Expression.parse(input);
+        assertTrue(parsed instanceof Sum);
+        assertSame(parsed, Expression.parse(input, ParseMode.DIRECT));
+        assertSame(parsed, Expression.parse(input, ParseMode.ANTLR_SLL));
+        assertSame(parsed, Expression.parse(parsed.toString()));
+        Expression binary = new Addition(x, new Addition(y, new Addition(two, new Addition(
+                new Multiplication(x, new Multiplication(y, x)),
+                new Multiplication(new Addition(x, y), new Addition(two, new Addition(x, y)))))));
+        assertEquals(binary, parsed);
+        assertEquals(binary.toString(), parsed.toString());
+        assertSame(parsed, Expression.flatten(binary));
+    }
+    
+    @Test
+    public void testFlattenLongChain() {
+        final int terms = 10000;
+        Expression binary = new Multiplication(x, y);
+        for (int i = 1; i < terms; i++) {
+            binary = new Addition(i % 2 == 0 ? x : new Multiplication(new Number(i), y), binary);
+        }
+        Expression flat = Expression.flatten(binary);
+        assertTrue(flat instanceof Sum);
+        assertEquals(terms, ((Sum) flat).size());
+        assertEquals(binary, flat);
+        assertEquals(binary.hashCode(), flat.hashCode());
+        assertSame(flat, Expression.flatten(flat));
+        assertSame(flat, Expression.parse(binary.toString(), ParseMode.DIRECT));
+        assertEquals(binary.toString(), flat.toString());
+        assertEquals(binary.differentiate("y"), flat.differentiate("y"));
+    }
+    
+    @Test
+    public void testFlatDifferentiateAndSimplify() {
+        String input = "x*x*y + x + 3*x*y*y";
+        Expression flat = Expression.parse(input);
+        Expression three = new Number(3);
+        Expression binary = new Addition(new Multiplication(x, new Multiplication(x, y)),
+                new Addition(x, new Multiplication(three, new Multiplication(x, new Multiplication(y, y)))));
+        assertEquals(binary, flat);
+        assertEquals(binary.differentiate("x"), flat.differentiate("x"));
+        assertEquals(binary.differentiate("y"), flat.differentiate("y"));
+        Map<String, Double> environment = new HashMap<>();
+        environment.put("x", 2.0);
+        environment.put("y", 5.0);
+        assertEquals(Commands.simplify(binary.toString(), environment), Commands.simplify(input, environment));
+        assertEquals(Polynomial.of(binary), Polynomial.of(flat));
+    }
+    
+    @Test(timeout = 5000)
+    public void testReparseLongFlatChainLinear() {
+        // toString() nests the chain as x+((y*1)+(x+...)), which must still parse
+        // into one flat node, in time linear in its length
+        Expression flat = chain(10000);
+        Expression reparsed = Expression.parse(flat.toString(), ParseMode.DIRECT);
+        assertSame(flat, reparsed);
+        assertEquals(10000, ((Sum) reparsed).size());
+        // ANTLR recurses once per parenthesis, so only a shallower chain
+        Expression shallow = chain(500);
+        assertSame(shallow, Expression.parse(shallow.toString()));
+        assertSame(shallow, Expression.parse(shallow.toString(), ParseMode.ANTLR_SLL));
+    }
+    
+    private Expression chain(int terms) {
+        List<Expression> operands = new ArrayList<>();
+        for (int i = 0; i < terms; i++) {
+            operands.add(i % 2 == 0 ? Expression.variable("x") : Expression.multiplication(y, new Number(i)));
+        }
+        return Expression.sum(operands);
+    }
 }
@@ -0,0 +1,108 @@
+package expressivo;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests for Main's batch mode.
+ */
+public class MainTest {
+
+    // Testing strategy
+    // runBatch():
+    //   one group, several groups; commands with and without a current expression;
+    //   a line whose parse fails, with a RuntimeException or with an Error
+    // Session:
+    //   commands act on the current expression without parsing text again
+
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+
+    private static String[] batch(String input) throws IOException {
+        final StringWriter out = new StringWriter();
+        Main.runBatch(new BufferedReader(new StringReader(input)), out);
+        return out.toString().split("\n");
+    }
+
+    @Test
+    public void testBatchGroups() throws IOException {
+        final String[] output = batch("x*x\n!d/dx\n\n!simplify x=3\n!d/dy\ny\n!d/dy\n");
+        assertArrayEquals(new String[] {
+            "x*x",
+            Commands.differentiate(Expression.parse("x*x"), "x").toString(),
+            Commands.simplify(Commands.differentiate(Expression.parse("x*x"), "x"),
+                Collections.singletonMap("x", 3.0)).toString(),
+            Commands.differentiate(Commands.differentiate(Expression.parse("x*x"), "x"), "y").toString(),
+            "y",
+            Commands.differentiate(Expression.parse("y"), "y").toString(),
+        }, output);
+    }
+
+    @Test
+    public void testBatchFailedParseStartsGroup() throws IOException {
+        final String[] output = batch("x\n(\n!d/dx\n");
+        assertEquals(3, output.length);
+        assertEquals("x", output[0]);
+        assertTrue(output[1], output[1].startsWith(IllegalArgumentException.class.getName()));
+        assertEquals("must enter an expression before using this command", output[2]);
+    }
+
+    @Test
+    public void testBatchErrorInOneGroup() throws IOException {
+        // nesting this deep overflows the stack of the ANTLR parser
+        final StringBuilder deep = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            deep.append('(');
+        }
+        deep.append('x');
+        for (int i = 0; i < 100000; i++) {
+            deep.append(')');
+        }
+        final String[] output = batch("x\n" + deep + "\n!d/dx\ny\n!d/dy\n");
+        assertEquals(5, output.length);
+        assertEquals("x", output[0]);
+        assertTrue(output[1], output[1].startsWith(StackOverflowError.class.getName()));
+        assertEquals("must enter an expression before using this command", output[2]);
+        assertEquals("y", output[3]);
+        assertEquals(Commands.differentiate(Expression.parse("y"), "y").toString(), output[4]);
+    }
+    
+    @Test
+    public void testSessionCommandsDoNotParse() {
+        final Thread thread = Thread.currentThread();
+        final List<Metrics.Operation> parses = new ArrayList<>();
+        final Metrics.Listener listener = (operation, nanos, input, output, depth) -> {
+            if (Thread.currentThread() == thread && (operation == Metrics.Operation.PARSE
+                    || operation == Metrics.Operation.COMMANDS_DIFFERENTIATE
+                    || operation == Metrics.Operation.COMMANDS_SIMPLIFY)) {
+                parses.add(operation);
+            }
+        };
+        final Main.Session session = new Main.Session();
+        Metrics.addListener(listener);
+        Metrics.enable();
+        try {
+            assertEquals("(x*x)+(y*x)", session.execute("x*x + y*x"));
+            session.execute("!d/dx");
+            session.execute("!simplify y=2");
+            session.execute("!simplify x=1 y=2");
+            session.execute("!d/dy");
+        } finally {
+            Metrics.disable();
+            Metrics.removeListener(listener);
+        }
+        assertEquals(Arrays.asList(Metrics.Operation.PARSE), parses);
+    }
+}
@@ -0,0 +1,187 @@
+package expressivo;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Test;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Tests for Metrics.
+ */
+public class MetricsTest {
+
+    // Testing strategy
+    //   metrics disabled, enabled, disabled again
+    //   operations: parse (both modes), differentiate, toString,
+    //     Commands.differentiate, Commands.simplify
+    //   listener registered or not
+    //   snapshot: count, sizes, depth, percentile with zero and several calls
+    //   Commands record node counts and depth of their input and result
+    //   flight recorder: events enabled in a recording, fields of each event;
+    //     turned off again, no more events
+    //   size and depth: leaf, binary node, shared subtree, n-ary node and its
+    //     binary chain, suffix view of an n-ary node, size past Long.MAX_VALUE
+    
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+    
+    @Test
+    public void testRecordsWhenEnabled() {
+        final List<Metrics.Operation> seen = new ArrayList<>();
+        final Metrics.Listener listener = (operation, nanos, input, output, depth) -> seen.add(operation);
+        Metrics.reset();
+        Metrics.addListener(listener);
+        Metrics.enable();
+        try {
+            Expression expression = Expression.parse("x*y + 2");
+            Expression.parse("x*y + 2", ParseMode.DIRECT);
+            expression.differentiate("x");
+            expression.toString();
+            Commands.differentiate("x*x", "x");
+            Commands.simplify("x*x", new HashMap<String,Double>());
+        } finally {
+            Metrics.disable();
+            Metrics.removeListener(listener);
+        }
+        Metrics.Snapshot parse = Metrics.snapshot(Metrics.Operation.PARSE);
+        assertTrue(parse.count() >= 2);
+        assertTrue(parse.inputSize() >= 14);
+        assertTrue(parse.maxDepth() >= 3);
+        assertTrue(parse.percentile(1.0) >= parse.percentile(0.5));
+        for (Metrics.Operation operation : Metrics.Operation.values()) {
+            assertTrue(operation.toString(), Metrics.snapshot(operation).count() > 0);
+            assertTrue(operation.toString(), seen.contains(operation));
+        }
+    }
+    
+    @Test
+    public void testNothingRecordedWhenDisabled() {
+        Metrics.disable();
+        Metrics.reset();
+        Expression.parse("x + 1").differentiate("x").toString();
+        for (Metrics.Operation operation : Metrics.Operation.values()) {
+            assertEquals(0, Metrics.snapshot(operation).count());
+            assertEquals(0, Metrics.snapshot(operation).percentile(0.5));
+        }
+    }
+    
+    @Test
+    public void testCommandsRecordNodesAndDepth() {
+        final List<long[]> recorded = new ArrayList<>();
+        final Metrics.Listener listener = (operation, nanos, input, output, depth) -> {
+            if (operation == Metrics.Operation.COMMANDS_DIFFERENTIATE || operation == Metrics.Operation.COMMANDS_SIMPLIFY) {
+                recorded.add(new long[] { input, output, depth });
+            }
+        };
+        Metrics.addListener(listener);
+        Metrics.enable();
+        try {
+            Commands.differentiate("x * (x * y)", "x");
+            Commands.simplify("x * (x * y)", Collections.singletonMap("x", 2.0));
+        } finally {
+            Metrics.disable();
+            Metrics.removeListener(listener);
+        }
+        assertEquals(2, recorded.size());
+        // x*(x*y) is a tree of five nodes, with x counted at both places, and depth 3;
+        // the output is counted as the result expression, before it is printed
+        final Expression input = Expression.parse("x * (x * y)");
+        assertEquals(5, Metrics.size(input));
+        assertEquals(3, Metrics.depth(input));
+        assertArrayEquals(new long[] { 5, Metrics.size(Commands.differentiate(input, "x")), 3 },
+            recorded.get(0));
+        assertArrayEquals(new long[] { 5, Metrics.size(Commands.simplify(input, Collections.singletonMap("x", 2.0))), 3 },
+            recorded.get(1));
+    }
+    
+    @Test
+    public void testFlightRecorderEvents() throws IOException {
+        final Path file = Files.createTempFile("metrics", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable(MetricsEvent.NAME);
+            recording.start();
+            Metrics.enable();
+            Metrics.enableFlightRecorder();
+            try {
+                Commands.differentiate("x * (x * y)", "x");
+            } finally {
+                Metrics.disableFlightRecorder();
+            }
+            Commands.simplify("x * (x * y)", Collections.singletonMap("x", 2.0));
+            Metrics.disable();
+            recording.stop();
+            recording.dump(file);
+        }
+        try {
+            final List<RecordedEvent> commands = new ArrayList<>();
+            final List<String> operations = new ArrayList<>();
+            for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+                if (!event.getEventType().getName().equals(MetricsEvent.NAME)
+                        || event.getThread().getJavaThreadId() != Thread.currentThread().getId()) {
+                    continue;
+                }
+                operations.add(event.getString("operation"));
+                if (event.getString("operation").startsWith("COMMANDS_")) {
+                    commands.add(event);
+                }
+            }
+            assertTrue(operations.toString(), operations.contains(Metrics.Operation.PARSE.name()));
+            assertFalse(operations.toString(), operations.contains(Metrics.Operation.COMMANDS_SIMPLIFY.name()));
+            assertEquals(1, commands.size());
+            final RecordedEvent event = commands.get(0);
+            assertEquals(Metrics.Operation.COMMANDS_DIFFERENTIATE.name(), event.getString("operation"));
+            assertTrue(event.getLong("latency") > 0);
+            assertEquals(5, event.getLong("inputSize"));
+            assertEquals(Metrics.size(Commands.differentiate(Expression.parse("x * (x * y)"), "x")),
+                event.getLong("outputSize"));
+            assertEquals(3, event.getInt("depth"));
+        } finally {
+            Files.delete(file);
+        }
+    }
+    
+    @Test
+    public void testSizeAndDepth() {
+        final Expression x = Expression.variable("x");
+        final Expression y = Expression.variable("y");
+        assertEquals(1, Metrics.size(x));
+        assertEquals(1, Metrics.depth(Expression.number(2)));
+        final Expression xy = Expression.multiplication(x, y);
+        assertEquals(3, Metrics.size(xy));
+        assertEquals(2, Metrics.depth(xy));
+        final Expression shared = Expression.add(xy, xy);
+        assertEquals(7, Metrics.size(shared));
+        assertEquals(3, Metrics.depth(shared));
+        assertEquals(4, Metrics.nodes(shared));
+        
+        final Sum flat = new Sum(new Expression[] { xy, x, y, Expression.number(1) });
+        final Expression chain = new Addition(xy, new Addition(x, new Addition(y, Expression.number(1))));
+        assertEquals(9, Metrics.size(flat));
+        assertEquals(Metrics.size(chain), Metrics.size(flat));
+        assertEquals(4, Metrics.depth(flat));
+        assertEquals(Metrics.depth(chain), Metrics.depth(flat));
+        final Expression suffix = flat.right();
+        assertEquals(5, Metrics.size(suffix));
+        assertEquals(3, Metrics.depth(suffix));
+        
+        Expression doubled = x;
+        for (int i = 0; i < 70; i++) {
+            doubled = Expression.add(doubled, doubled);
+        }
+        assertEquals(Long.MAX_VALUE, Metrics.size(doubled));
+        assertEquals(71, Metrics.depth(doubled));
+    }
+}
@@ -0,0 +1,145 @@
+package expressivo;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import org.junit.Test;
+
+/**
+ * Tests for Polynomial.
+ */
+public class PolynomialTest {
+
+    // Testing strategy
+    // of(), toExpression():
+    //   expression is a number, a variable, a sum, a product, nested
+    //   like terms cancel to one term, terms combine to zero variables
+    //   expression shares subtrees; subtree shared by a sum and a product
+    // add(), multiply():
+    //   operands over the same variables, over different variables, zero
+    // differentiate():
+    //   variable absent, degree 1, degree > 1, variable disappears from result
+    // substitute():
+    //   binds all, some, none of the variables
+    // equals(), hashCode():
+    //   different expressions denoting the same polynomial
+    // of(expression, maxTerms):
+    //   expansion within the limit, intermediate expansion past the limit
+    // many variables:
+    //   thousands of distinct variables, each term using few of them
+    
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+    
+    @Test
+    public void testOfConstant() {
+        assertEquals(Polynomial.constant(5), Polynomial.of(Expression.parse("2 + 3")));
+        assertEquals(Expression.number(5), Polynomial.of(Expression.parse("2 + 3")).toExpression());
+        assertEquals(Expression.number(0), Polynomial.ZERO.toExpression());
+    }
+    
+    @Test
+    public void testOfCollectsLikeTerms() {
+        Polynomial p = Polynomial.of(Expression.parse("x*y + y*x + 2*x + x"));
+        assertEquals(2, p.terms());
+        assertEquals(Arrays.asList("x", "y"), p.variables());
+        assertEquals(Expression.parse("2*x*y + 3*x"), p.toExpression());
+    }
+    
+    @Test
+    public void testOfExpandsProducts() {
+        Polynomial p = Polynomial.of(Expression.parse("(x + 1) * (x + 1)"));
+        assertEquals(Expression.parse("x*x + 2*x + 1"), p.toExpression());
+    }
+    
+    @Test
+    public void testOfSharedSubtrees() {
+        Expression sum = Expression.parse("x + y");
+        Expression square = Expression.multiplication(sum, sum);
+        assertEquals(Polynomial.of(Expression.parse("x*x + 2*x*y + y*y")), Polynomial.of(square));
+    }
+    
+    @Test
+    public void testAddMultiplyDifferentVariables() {
+        Polynomial x = Polynomial.variable("x");
+        Polynomial y = Polynomial.variable("y");
+        assertEquals(Polynomial.of(Expression.parse("x + y")), x.add(y));
+        assertEquals(Polynomial.of(Expression.parse("x*y*y")), x.multiply(y).multiply(y));
+        assertEquals(Polynomial.ZERO, x.multiply(Polynomial.ZERO));
+        assertEquals(x, x.add(Polynomial.ZERO));
+    }
+    
+    @Test
+    public void testDifferentiate() {
+        Polynomial p = Polynomial.of(Expression.parse("x*x*x + x*y + 4"));
+        assertEquals(Polynomial.of(Expression.parse("3*x*x + y")), p.differentiate("x"));
+        assertEquals(Polynomial.variable("x"), p.differentiate("y"));
+        assertEquals(Polynomial.ZERO, p.differentiate("z"));
+    }
+    
+    @Test
+    public void testSubstitute() {
+        Polynomial p = Polynomial.of(Expression.parse("x*x*y + y + 1"));
+        Map<String,Double> environment = new HashMap<>();
+        environment.put("x", 3.0);
+        assertEquals(Polynomial.of(Expression.parse("10*y + 1")), p.substitute(environment));
+        environment.put("y", 2.0);
+        assertEquals(Polynomial.constant(21), p.substitute(environment));
+    }
+    
+    @Test
+    public void testEqualsHashCode() {
+        Polynomial p1 = Polynomial.of(Expression.parse("(x + y) * 2"));
+        Polynomial p2 = Polynomial.of(Expression.parse("y + x + y*1 + x*1"));
+        assertEquals(p1, p2);
+        assertEquals(p1.hashCode(), p2.hashCode());
+        assertNotEquals(p1, Polynomial.of(Expression.parse("x + y")));
+    }
+    
+    @Test
+    public void testOfOperandSharedBySumAndProduct() {
+        // the b of b*(...) is also an operand of a+b, so a+b must not reuse its terms
+        assertEquals(Polynomial.of(Expression.parse("a*b*c + b*b*c + a*b + b*b")),
+            Polynomial.of(Expression.parse("b*((c + 1)*(a + b))")));
+    }
+    
+    @Test
+    public void testOfWithinTermLimit() {
+        Expression square = Expression.parse("(x + y + 1) * (x + y + 1)");
+        assertEquals(Optional.of(Polynomial.of(square)), Polynomial.of(square, 6));
+        assertEquals(Optional.empty(), Polynomial.of(square, 5));
+        // the limit applies to intermediate results, even if terms cancel later
+        assertEquals(Optional.empty(), Polynomial.of(Expression.parse("0 * ((x + y) * (x + y))"), 2));
+    }
+    
+    @Test(timeout = 2000)
+    public void testManyVariablesSparse() {
+        final int count = 8000;
+        List<String> terms = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            terms.add(name(i) + "*x");
+        }
+        Polynomial p = Polynomial.of(Expression.parse(String.join(" + ", terms)));
+        assertEquals(count, p.terms());
+        assertEquals(count + 1, p.variables().size());
+        assertEquals(Polynomial.variable("x"), p.differentiate(name(count / 2)));
+    }
+    
+    /** @return a distinct variable name for each i >= 0, none of them x */
+    private static String name(int i) {
+        StringBuilder name = new StringBuilder("v");
+        do {
+            name.append((char) ('a' + i % 26));
+            i /= 26;
+        } while (i > 0);
+        return name.toString();
+    }
+}
@@ -0,0 +1,174 @@
+package expressivo;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+/**
+ * Tests for Server.
+ */
+public class ServerTest {
+
+    // Testing strategy
+    //   request: expression, !d/d, !simplify, invalid expression, command with no expression
+    //   requests sent one at a time, or pipelined before reading any answer
+    //   one client, many concurrent clients with separate sessions
+    //   client ends the session with an empty line
+    //   more clients than maxSessions: extra client waits, served once a session ends
+    //   request that fails with an Error: answered with the error, session goes on
+
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+
+    @Test
+    public void testRequestsAnsweredLikeConsole() throws Exception {
+        try (Server server = start()) {
+            try (Socket client = new Socket(InetAddress.getLoopbackAddress(), server.port())) {
+                BufferedReader in = reader(client);
+                Writer out = writer(client);
+                assertEquals(new Main.Session().execute("!d/dx"), request(in, out, "!d/dx"));
+                assertEquals("(x*x)+y", request(in, out, "x*x + y"));
+                assertEquals("2.0*x", request(in, out, "!d/dx"));
+                assertEquals("6.0", request(in, out, "!simplify x=3"));
+                assertEquals(new Main.Session().execute("x +"), request(in, out, "x +"));
+                out.write("\n");
+                out.flush();
+                assertNull(in.readLine());
+            }
+        }
+    }
+
+    @Test
+    public void testPipelinedConcurrentClients() throws Exception {
+        final int clients = 16, requests = 200;
+        final ExecutorService pool = Executors.newFixedThreadPool(clients);
+        try (Server server = start()) {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int c = 0; c < clients; c++) {
+                final int id = c;
+                results.add(pool.submit(() -> {
+                    try (Socket client = new Socket(InetAddress.getLoopbackAddress(), server.port())) {
+                        Writer out = writer(client);
+                        for (int r = 0; r < requests; r++) {
+                            out.write("x*" + id + " + " + r + "\n!simplify x=1\n");
+                        }
+                        out.flush();
+                        client.shutdownOutput();
+                        BufferedReader in = reader(client);
+                        for (int r = 0; r < requests; r++) {
+                            assertEquals("(x*" + (double) id + ")+" + (double) r, in.readLine());
+                            assertEquals(String.valueOf((double) (id + r)), in.readLine());
+                        }
+                        assertNull(in.readLine());
+                        return true;
+                    }
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get());
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testQueuesPastMaxSessions() throws Exception {
+        try (Server server = start(1)) {
+            try (Socket first = new Socket(InetAddress.getLoopbackAddress(), server.port());
+                    Socket second = new Socket(InetAddress.getLoopbackAddress(), server.port())) {
+                BufferedReader in = reader(first);
+                Writer out = writer(first);
+                assertEquals("x+1.0", request(in, out, "x + 1"));
+                // the second connection waits while the first holds the only session
+                BufferedReader waiting = reader(second);
+                Writer waitingOut = writer(second);
+                waitingOut.write("x * 2\n");
+                waitingOut.flush();
+                second.setSoTimeout(200);
+                try {
+                    fail("answered while waiting: " + waiting.readLine());
+                } catch (SocketTimeoutException expected) {
+                    // not served yet
+                }
+                out.write("\n");
+                out.flush();
+                assertNull(in.readLine());
+                second.setSoTimeout(0);
+                assertEquals("x*2.0", waiting.readLine());
+            }
+        }
+    }
+
+    @Test
+    public void testErrorAnsweredAndSessionContinues() throws Exception {
+        // nesting this deep overflows the stack of the ANTLR parser
+        StringBuilder deep = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            deep.append('(');
+        }
+        deep.append('x');
+        for (int i = 0; i < 100000; i++) {
+            deep.append(')');
+        }
+        try (Server server = start()) {
+            try (Socket client = new Socket(InetAddress.getLoopbackAddress(), server.port())) {
+                BufferedReader in = reader(client);
+                Writer out = writer(client);
+                assertEquals("x*y", request(in, out, "x*y"));
+                String answer = request(in, out, deep.toString());
+                assertTrue(answer, answer.startsWith(StackOverflowError.class.getName()));
+                assertEquals("y", request(in, out, "!d/dx"));
+            }
+        }
+    }
+
+    private static Server start() throws IOException {
+        return start(Server.MAX_SESSIONS);
+    }
+
+    private static Server start(int maxSessions) throws IOException {
+        final Server server = new Server(0, maxSessions);
+        final Thread thread = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (IOException ioe) {
+                throw new RuntimeException(ioe);
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return server;
+    }
+
+    private static String request(BufferedReader in, Writer out, String line) throws IOException {
+        out.write(line + "\n");
+        out.flush();
+        return in.readLine();
+    }
+
+    private static BufferedReader reader(Socket client) throws IOException {
+        return new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    private static Writer writer(Socket client) throws IOException {
+        return new OutputStreamWriter(client.getOutputStream(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,81 @@
+package expressivo;
+
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Tests for Symbols.
+ */
+public class SymbolsTest {
+
+    // Testing strategy
+    // id(), name():
+    //   name new or already registered; invalid name; id out of range
+    //   Variable carries the id of its name
+    // environment():
+    //   empty map, map binding some registered variables, map with a new name
+
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+
+    @Test
+    public void testIdStableAndDense() {
+        int id = Symbols.id("symbolsTestAlpha");
+        assertEquals(id, Symbols.id("symbolsTestAlpha"));
+        assertEquals("symbolsTestAlpha", Symbols.name(id));
+        assertTrue(id < Symbols.size());
+        int next = Symbols.id("symbolsTestBeta");
+        assertNotEquals(id, next);
+        assertTrue(next < Symbols.size());
+        assertEquals(id, new Variable("symbolsTestAlpha").getId());
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testIdInvalidName() {
+        Symbols.id("x1");
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testNameUnknownId() {
+        Symbols.name(Symbols.size());
+    }
+
+    @Test
+    public void testEnvironment() {
+        assertEquals(0, Symbols.environment(new HashMap<String,Double>()).length);
+        Symbols.id("symbolsTestAlpha");
+        Map<String,Double> map = new HashMap<>();
+        map.put("x", 2.0);
+        map.put("symbolsTestGamma", 3.0);
+        double[] environment = Symbols.environment(map);
+        assertEquals(Math.max(Symbols.id("x"), Symbols.id("symbolsTestGamma")) + 1, environment.length);
+        assertEquals(2.0, environment[Symbols.id("x")], 0);
+        assertEquals(3.0, environment[Symbols.id("symbolsTestGamma")], 0);
+        assertFalse(Symbols.isBound(environment, Symbols.id("symbolsTestAlpha")));
+        assertFalse(Symbols.isBound(environment, Symbols.id("symbolsTestDelta")));
+    }
+
+    @Test
+    public void testEnvironmentSizedByItsVariables() {
+        // the array does not grow with the rest of the table
+        Map<String,Double> map = new HashMap<>();
+        map.put("x", 1.0);
+        for (int i = 0; i < 1000; i++) {
+            Symbols.id("symbolsTestFiller" + (char) ('a' + i % 26) + (char) ('a' + i / 26 % 26)
+                + (char) ('a' + i / 676));
+        }
+        assertEquals(Symbols.id("x") + 1, Symbols.environment(map).length);
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testEnvironmentNaN() {
+        Symbols.environment(Collections.singletonMap("x", Double.NaN));
+    }
+}